@@ -0,0 +1,198 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds what inbound peers can make the Receiver do:
+ * - at most maxConnections connections in total and maxPerAddress per remote
+ *   address (loopback only counts against the total, so a mesh of local nodes fits)
+ * - (THREADS mode) a worker pool with a thread for every connection; peers keep
+ *   their connections open, so a queued connection would never be read
+ * - a token bucket per remote address limiting frames per second
+ *
+ * When an address runs out of tokens the receiver stops reading from its
+ * socket until the next token is due; the kernel buffers then fill up and
+ * TCP flow control slows the sender down, instead of us buffering without
+ * limit. One busy address only ever waits on its own bucket.
+ */
+public class AdmissionControl {
+    /**
+     * What happens to a new connection when all workers are busy and the queue is full.
+     * Never served on the accepting thread: peers keep their connections open,
+     * so that would stop all accepts for as long as one peer stays connected.
+     */
+    public enum RejectionPolicy {
+        // Close the new connection
+        REJECT,
+        // Close the connection that has waited longest and queue the new one
+        DROP_OLDEST
+    }
+
+    /**
+     * Configuration, read from system properties:
+     * -Dp2p.receiver.maxConnections (512), -Dp2p.receiver.maxPerAddress (16),
+     * -Dp2p.receiver.workers (maxConnections), -Dp2p.receiver.queue (0),
+     * -Dp2p.receiver.rejection=reject|drop_oldest (reject),
+     * -Dp2p.receiver.rate frames/s per address (500), -Dp2p.receiver.burst (1000)
+     */
+    public static class Limits {
+        final int maxConnections;
+        final int maxPerAddress;
+        final int workers;
+        final int queueSize;
+        final RejectionPolicy policy;
+        final double ratePerSecond;
+        final double burst;
+
+        public Limits(int maxConnections, int maxPerAddress, int workers, int queueSize,
+                      RejectionPolicy policy, double ratePerSecond, double burst) {
+            this.maxConnections = Math.max(1, maxConnections);
+            this.maxPerAddress = Math.max(1, maxPerAddress);
+            this.workers = Math.max(1, workers);
+            this.queueSize = Math.max(0, queueSize);
+            this.policy = policy;
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+        }
+
+        public static Limits fromSystemProperties() {
+            RejectionPolicy policy;
+            String value = System.getProperty("p2p.receiver.rejection", "reject");
+            try {
+                policy = RejectionPolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown rejection policy '" + value + "', using reject");
+                policy = RejectionPolicy.REJECT;
+            }
+            int maxConnections = Integer.getInteger("p2p.receiver.maxConnections", 512);
+            return new Limits(
+                maxConnections,
+                Integer.getInteger("p2p.receiver.maxPerAddress", 16),
+                Integer.getInteger("p2p.receiver.workers", maxConnections),
+                Integer.getInteger("p2p.receiver.queue", 0),
+                policy,
+                Double.parseDouble(System.getProperty("p2p.receiver.rate", "500")),
+                Double.parseDouble(System.getProperty("p2p.receiver.burst", "1000"))
+            );
+        }
+    }
+
+    /**
+     * Connections and rate limit of one remote address
+     */
+    private class Client {
+        int connections;
+        final TokenBucket bucket = new TokenBucket(limits.ratePerSecond, limits.burst);
+    }
+
+    private static final LongAdder rejected = Metrics.counter("receiver.rejected");
+    private static final LongAdder throttled = Metrics.counter("receiver.throttled");
+
+    private final Limits limits;
+    private final Semaphore slots;
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+
+    public AdmissionControl(Limits limits) {
+        this.limits = limits;
+        this.slots = new Semaphore(limits.maxConnections);
+        Metrics.gauge("receiver.connections.free", slots::availablePermits);
+    }
+
+    /**
+     * Reserve a connection slot for a newly accepted connection
+     * @return false if the connection must be closed; otherwise release() it when it ends
+     */
+    public boolean admit(InetAddress address) {
+        if (!slots.tryAcquire()) {
+            rejected.increment();
+            return false;
+        }
+        boolean[] admitted = new boolean[1];
+        int perAddress = address.isLoopbackAddress() ? limits.maxConnections : limits.maxPerAddress;
+        clients.compute(address, (a, client) -> {
+            if (client == null) {
+                client = new Client();
+            }
+            if (client.connections < perAddress) {
+                client.connections++;
+                admitted[0] = true;
+            }
+            return client;
+        });
+        if (!admitted[0]) {
+            slots.release();
+            rejected.increment();
+        }
+        return admitted[0];
+    }
+
+    /**
+     * Give back the slot of a connection that was admitted
+     */
+    public void release(InetAddress address) {
+        clients.computeIfPresent(address, (a, client) -> --client.connections <= 0 ? null : client);
+        slots.release();
+    }
+
+    /**
+     * Ask to process one frame from this address
+     * @return 0 to go ahead, otherwise nanoseconds to stop reading before asking again
+     */
+    public long throttle(InetAddress address) {
+        Client client = clients.get(address);
+        if (client == null) {
+            return 0;
+        }
+        long wait = client.bucket.tryTake();
+        if (wait > 0) {
+            throttled.increment();
+        }
+        return wait;
+    }
+
+    /**
+     * Worker pool for blocking connections: fixed size (threads are started on
+     * demand), an optional bounded queue, and the configured rejection policy.
+     * Tasks that are Closeable are closed when dropped.
+     */
+    public ThreadPoolExecutor newWorkerPool() {
+        BlockingQueue<Runnable> queue = limits.queueSize > 0
+            ? new ArrayBlockingQueue<>(limits.queueSize) : new SynchronousQueue<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(limits.workers, limits.workers,
+                60, TimeUnit.SECONDS, queue,
+                Threads.daemonFactory("receiver"), this::onRejected);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void onRejected(Runnable task, ThreadPoolExecutor pool) {
+        if (pool.isShutdown()) {
+            close(task);
+            return;
+        }
+        if (limits.policy == RejectionPolicy.DROP_OLDEST) {
+            Runnable oldest = pool.getQueue().poll();
+            if (oldest != null) {
+                close(oldest);
+            }
+            if (!pool.getQueue().offer(task)) {
+                close(task);
+            }
+        } else {
+            close(task);
+        }
+    }
+
+    private static void close(Runnable task) {
+        rejected.increment();
+        if (task instanceof Closeable) {
+            try {
+                ((Closeable) task).close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/**
+ * Pool of long-lived outbound connections, one per peer (keyed by Peer.getId()).
+ * Connections are reused across messages, re-opened when they break and
+ * closed after they have been idle for too long.
+ */
+public class ConnectionPool {
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5_000;
+    public static final int DEFAULT_WRITE_TIMEOUT_MS = 5_000;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    private final ConcurrentHashMap<String, PooledConnection> connections;
+    private final long idleTimeoutMs;
+    private final ScheduledExecutorService evictor;
+
+    public ConnectionPool() {
+        this(DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public ConnectionPool(long idleTimeoutMs) {
+        this.connections = new ConcurrentHashMap<>();
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("connection-evictor"));
+        long period = Math.max(1_000, idleTimeoutMs / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the given bytes to the peer, reusing the pooled connection if there is one.
+     * A broken connection is dropped and the write is retried once on a fresh one.
+     */
+    public void send(Peer peer, ByteBuffer data) throws IOException {
+        send(peer, conn -> conn.write(data.duplicate()));
+    }
+
+    /**
+     * Encode a frame straight into the connection's reusable buffer and write it
+     */
+    public void send(Peer peer, Frame frame) throws IOException {
+        send(peer, conn -> conn.write(frame));
+    }
+
+    private interface Write {
+        void to(PooledConnection conn) throws IOException;
+    }
+
+    private void send(Peer peer, Write write) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            PooledConnection conn = acquire(peer);
+            try {
+                write.to(conn);
+                return;
+            } catch (IOException e) {
+                lastError = e;
+                discard(peer.getId(), conn);
+            }
+        }
+        throw lastError;
+    }
+
+    private PooledConnection acquire(Peer peer) throws IOException {
+        PooledConnection conn = connections.get(peer.getId());
+        if (conn != null && conn.isUsable()) {
+            return conn;
+        }
+        if (conn != null) {
+            discard(peer.getId(), conn);
+        }
+
+        PooledConnection fresh = PooledConnection.open(peer);
+        PooledConnection existing = connections.putIfAbsent(peer.getId(), fresh);
+        if (existing != null) {
+            // Another thread connected first - use its connection
+            fresh.close();
+            return existing;
+        }
+        return fresh;
+    }
+
+    private void discard(String peerId, PooledConnection conn) {
+        connections.remove(peerId, conn);
+        conn.close();
+    }
+
+    /**
+     * Close the connection to a single peer (if any)
+     */
+    public void close(String peerId) {
+        PooledConnection conn = connections.remove(peerId);
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    /**
+     * Close every pooled connection
+     */
+    public void closeAll() {
+        for (String peerId : connections.keySet()) {
+            close(peerId);
+        }
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        connections.forEach((peerId, conn) -> {
+            if (now - conn.lastUsed > idleTimeoutMs || !conn.isUsable()) {
+                discard(peerId, conn);
+            }
+        });
+    }
+
+    /**
+     * A single outbound connection. The channel is non-blocking so that a
+     * dead peer can be detected (EOF) before reuse and writes can time out.
+     */
+    private static class PooledConnection {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final ByteBuffer probe = ByteBuffer.allocate(64);
+        private final FrameCodec codec = FrameCodec.outbound();
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private volatile long lastUsed;
+
+        private PooledConnection(SocketChannel channel, Selector selector) {
+            this.channel = channel;
+            this.selector = selector;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        static PooledConnection open(Peer peer) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(peer.getIp(), peer.getPort()),
+                                         DEFAULT_CONNECT_TIMEOUT_MS);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                Selector selector = Selector.open();
+                channel.register(selector, 0);
+                PooledConnection conn = new PooledConnection(channel, selector);
+                // First frame tells the receiver whether we compress
+                conn.write(conn.codec.helloFrame(Sender.getLocalId()));
+                return conn;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * The receiving side never writes back on this connection, so
+         * anything other than "no data yet" means the peer went away.
+         */
+        synchronized boolean isUsable() {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            try {
+                probe.clear();
+                return channel.read(probe) == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        synchronized void write(Frame frame) throws IOException {
+            if (FrameCodec.encodedSize(frame) > writeBuffer.capacity()) {
+                // Rare large frame: don't keep a big buffer around for it
+                write(codec.encode(frame));
+                return;
+            }
+            writeBuffer.clear();
+            codec.encode(frame, writeBuffer);
+            writeBuffer.flip();
+            write(writeBuffer);
+        }
+
+        synchronized void write(ByteBuffer data) throws IOException {
+            SelectionKey key = channel.keyFor(selector);
+            while (data.hasRemaining()) {
+                if (channel.write(data) == 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    int ready = selector.select(DEFAULT_WRITE_TIMEOUT_MS);
+                    key.interestOps(0);
+                    selector.selectedKeys().clear();
+                    if (ready == 0) {
+                        throw new SocketTimeoutException("Write timed out");
+                    }
+                }
+            }
+            lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized void close() {
+            codec.close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receiving side of reliable chat delivery (the sending side is the Outbox).
+ *
+ * Outbox messages carry a sequence number that counts up per sender session
+ * (a session is one run of the sending node). They are shown and saved in
+ * sequence order, once each: duplicates are dropped, and messages that come
+ * early wait in a reorder buffer until the gap before them is filled.
+ *
+ * Acks go back in batches. One ACK frame covers everything received in order
+ * (cumulative) plus the ranges received beyond a gap (selective). An ACK is
+ * sent ackDelay after the first message it covers, after ackEvery messages,
+ * or at once for a duplicate or an out-of-order message, so the sender
+ * quickly learns what to resend. A message from an older session is answered
+ * at once with an ack for the newest session we know, so a sender that lost
+ * its session counter moves past it.
+ *
+ * SEQ_MESSAGE payload: long session, long seq, long base (lowest seq the
+ * sender is still waiting on), UTF-8 text
+ * ACK payload: long session, long cumulative, short n, n x (long first, long last)
+ *
+ * What was shown survives a restart: per sender, chat_delivery_<port>/ holds
+ * a memory-mapped file with the session, the next expected seq and the
+ * recently shown message ids, updated as each message is shown (before any
+ * ack covers it). A message resent because our ack never went out is then a
+ * duplicate after a restart too.
+ *
+ * State file (big endian): long session, long next, long shown (ids written
+ * so far), REMEMBERED_IDS x long id (ring, slot = n % REMEMBERED_IDS)
+ *
+ * Settings: -Dp2p.delivery.ackDelayMillis (20), -Dp2p.delivery.ackEvery (32),
+ * -Dp2p.delivery.reorderLimit (4096)
+ */
+public class Delivery implements Closeable {
+    static final int HEADER = 8 + 8 + 8;
+    private static final int MAX_SACK_RANGES = 64;
+    // Message ids remembered per sender, to drop resends after the sender restarts
+    private static final int REMEMBERED_IDS = 4096;
+    private static final int STATE_HEADER = 8 + 8 + 8;
+    private static final int STATE_SIZE = STATE_HEADER + REMEMBERED_IDS * 8;
+
+    /**
+     * Receive state for one sender, guarded by the Inbound itself
+     */
+    private static class Inbound {
+        final Peer peer;
+        final TreeMap<Long, Frame> early = new TreeMap<>();
+        final LinkedHashSet<Long> shownIds = new LinkedHashSet<>();
+        // Saved copy of session, next and shownIds; null if it can't be saved
+        final MappedByteBuffer saved;
+        long session;
+        long next;
+        long shown;
+        int unacked;
+        boolean ackScheduled;
+
+        Inbound(Peer peer, MappedByteBuffer saved) {
+            this.peer = peer;
+            this.saved = saved;
+            if (saved != null) {
+                session = saved.getLong(0);
+                next = saved.getLong(8);
+                shown = saved.getLong(16);
+                for (long n = Math.max(0, shown - REMEMBERED_IDS); n < shown; n++) {
+                    shownIds.add(saved.getLong(slot(n)));
+                }
+            }
+        }
+
+        void saveMark() {
+            if (saved != null) {
+                saved.putLong(0, session).putLong(8, next);
+            }
+        }
+
+        void saveShown(long messageId) {
+            if (saved != null) {
+                saved.putLong(slot(shown), messageId);
+                saved.putLong(16, shown + 1);
+            }
+            shown++;
+        }
+
+        private static int slot(long n) {
+            return STATE_HEADER + (int) (n % REMEMBERED_IDS) * 8;
+        }
+    }
+
+    private static final LongAdder received = Metrics.counter("delivery.received");
+    private static final LongAdder duplicates = Metrics.counter("delivery.duplicates");
+    private static final LongAdder reordered = Metrics.counter("delivery.reordered");
+    private static final LongAdder acks = Metrics.counter("delivery.acks");
+
+    private final MessageHistory history;
+    private final Path dir;
+    private final long ackDelayMs;
+    private final int ackEvery;
+    private final int reorderLimit;
+    private final ConcurrentHashMap<String, Inbound> inbound = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("delivery-ack"));
+
+    public Delivery(int port, MessageHistory history) {
+        this("chat_delivery_" + port, history,
+             Long.getLong("p2p.delivery.ackDelayMillis", 20),
+             Integer.getInteger("p2p.delivery.ackEvery", 32),
+             Integer.getInteger("p2p.delivery.reorderLimit", 4096));
+    }
+
+    public Delivery(String directory, MessageHistory history, long ackDelayMs, int ackEvery, int reorderLimit) {
+        this.history = history;
+        Path stateDir = Paths.get(directory);
+        try {
+            Files.createDirectories(stateDir);
+        } catch (IOException e) {
+            System.err.println("❌ Cannot save delivery state, a restart may show resent messages again: " +
+                               e.getMessage());
+            stateDir = null;
+        }
+        this.dir = stateDir;
+        this.ackDelayMs = Math.max(0, ackDelayMs);
+        this.ackEvery = Math.max(1, ackEvery);
+        this.reorderLimit = Math.max(1, reorderLimit);
+    }
+
+    /**
+     * SEQ_MESSAGE payload for one outbox message
+     */
+    static byte[] payload(long session, long seq, long base, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER + bytes.length)
+            .putLong(session).putLong(seq).putLong(base).put(bytes).array();
+    }
+
+    /**
+     * Handler for SEQ_MESSAGE frames (register with the Dispatcher)
+     */
+    public void onFrame(Frame frame, InetSocketAddress remote) {
+        Peer from = Dispatcher.replyPeer(frame, remote);
+        if (from == null || frame.getPayload().length < HEADER) {
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(frame.getPayload());
+        long session = in.getLong();
+        long seq = in.getLong();
+        long base = in.getLong();
+        String origin = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        received.increment();
+
+        Inbound state = inbound.computeIfAbsent(from.getId(), id -> new Inbound(from, openState(id)));
+        Frame ack;
+        synchronized (state) {
+            // Older session: left over from before the sender restarted, or the sender lost its counter
+            ack = session < state.session ? ackFrame(state) : accept(state, frame, session, seq, base, origin);
+        }
+        if (ack != null) {
+            Sender.sendFrameAsync(state.peer, ack);
+        }
+    }
+
+    /**
+     * Take a message of the sender's current or a newer session (called holding the state)
+     * @return an ACK to send now, or null
+     */
+    private Frame accept(Inbound state, Frame frame, long session, long seq, long base, String origin) {
+        if (session > state.session) {
+            // New sender session: everything before its base was taken by an earlier run of ours
+            state.session = session;
+            state.next = base;
+            state.early.clear();
+            state.saveMark();
+        }
+        boolean ackNow = false;
+        if (seq < state.next || state.early.containsKey(seq)) {
+            // Our ack was lost or late
+            duplicates.increment();
+            ackNow = true;
+        } else if (seq == state.next) {
+            show(state, frame, origin);
+            state.next++;
+            Frame waiting;
+            while ((waiting = state.early.remove(state.next)) != null) {
+                show(state, waiting, origin);
+                state.next++;
+            }
+            state.saveMark();
+        } else if (seq - state.next < reorderLimit) {
+            state.early.put(seq, frame);
+            reordered.increment();
+            ackNow = true;
+        } else {
+            return null; // Too far ahead to buffer; the sender resends it
+        }
+
+        state.unacked++;
+        if (ackNow || state.unacked >= ackEvery) {
+            return ackFrame(state);
+        }
+        if (!state.ackScheduled) {
+            state.ackScheduled = true;
+            try {
+                timer.schedule(() -> flush(state), ackDelayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                state.ackScheduled = false; // Closing
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        for (Inbound state : inbound.values()) {
+            synchronized (state) {
+                if (state.saved != null) {
+                    state.saved.force();
+                }
+            }
+        }
+    }
+
+    private void show(Inbound state, Frame frame, String origin) {
+        if (!state.shownIds.add(frame.getMessageId())) {
+            duplicates.increment();
+            return;
+        }
+        if (state.shownIds.size() > REMEMBERED_IDS) {
+            Iterator<Long> oldest = state.shownIds.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        byte[] payload = frame.getPayload();
+        Receiver.showMessage(origin, new String(payload, HEADER, payload.length - HEADER, StandardCharsets.UTF_8),
+                             history);
+        state.saveShown(frame.getMessageId());
+    }
+
+    /**
+     * Map the saved state of a sender, creating it empty for a new one
+     * @return the mapping, or null to keep this sender's state in memory only
+     */
+    private MappedByteBuffer openState(String peerId) {
+        if (dir == null) {
+            return null;
+        }
+        Path path = dir.resolve(peerId.replaceAll("[^A-Za-z0-9.-]", "_") + ".state");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, STATE_SIZE);
+        } catch (IOException e) {
+            System.err.println("[Delivery Error] Cannot save state for " + peerId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Send the delayed ack of a sender, unless one went out in the meantime
+     */
+    private void flush(Inbound state) {
+        Frame ack;
+        synchronized (state) {
+            if (!state.ackScheduled) {
+                return;
+            }
+            ack = ackFrame(state);
+        }
+        Sender.sendFrameAsync(state.peer, ack);
+    }
+
+    /**
+     * ACK for everything received from a sender so far; resets its pending count
+     */
+    private Frame ackFrame(Inbound state) {
+        List<long[]> ranges = new ArrayList<>();
+        long[] range = null;
+        for (long seq : state.early.keySet()) {
+            if (range != null && seq == range[1] + 1) {
+                range[1] = seq;
+            } else if (ranges.size() == MAX_SACK_RANGES) {
+                break;
+            } else {
+                range = new long[] { seq, seq };
+                ranges.add(range);
+            }
+        }
+        ByteBuffer payload = ByteBuffer.allocate(8 + 8 + 2 + ranges.size() * 16);
+        payload.putLong(state.session).putLong(state.next - 1).putShort((short) ranges.size());
+        for (long[] r : ranges) {
+            payload.putLong(r[0]).putLong(r[1]);
+        }
+        state.unacked = 0;
+        state.ackScheduled = false;
+        acks.increment();
+        return new Frame(Frame.ACK, (byte) 0, Sender.nextMessageId(), System.currentTimeMillis(),
+                         Sender.getLocalId(), payload.array());
+    }
+}
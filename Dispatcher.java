@@ -0,0 +1,63 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes decoded frames to the handler registered for their type.
+ * Both receiver engines hand every frame to one shared Dispatcher, so new
+ * frame types only need a handler registered here.
+ */
+public class Dispatcher {
+    /**
+     * Handles one frame type; called on the receiver's I/O thread
+     */
+    public interface Handler {
+        void handle(Frame frame, InetSocketAddress remote);
+    }
+
+    private static final LongAdder frames = Metrics.counter("receiver.frames");
+    private static final LatencyHistogram dispatchLatency = Metrics.histogram("receiver.dispatch");
+
+    private final Handler[] handlers = new Handler[256];
+
+    /**
+     * Dispatcher with the default chat handler: MESSAGE frames are shown
+     * and saved to history
+     */
+    public Dispatcher(MessageHistory history) {
+        register(Frame.MESSAGE, (frame, remote) ->
+            Receiver.showMessage(remote.getAddress().getHostAddress() + ":" + remote.getPort(),
+                                 frame.getText(), history));
+    }
+
+    public void register(byte type, Handler handler) {
+        handlers[type & 0xFF] = handler;
+    }
+
+    /**
+     * Where to answer a frame: the sender's address with the listening port
+     * from its id ("username@port"), not the ephemeral port of its connection
+     * @return the peer, or null if the sender id has no port
+     */
+    public static Peer replyPeer(Frame frame, InetSocketAddress remote) {
+        String sender = frame.getSenderId();
+        try {
+            int port = Integer.parseInt(sender.substring(sender.lastIndexOf('@') + 1));
+            return new Peer(remote.getAddress().getHostAddress(), port);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Pass a frame to its handler; frames of unknown types are ignored
+     */
+    public void dispatch(Frame frame, InetSocketAddress remote) {
+        frames.increment();
+        Handler handler = handlers[frame.getType() & 0xFF];
+        if (handler != null) {
+            long start = System.nanoTime();
+            handler.handle(frame, remote);
+            dispatchLatency.recordSince(start);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Fixed-memory "have I seen this message?" filter.
+ *
+ * Two Bloom filters are used in rotation: new ids go into the current one
+ * and lookups check both. When the current filter has taken its share of
+ * ids it becomes the previous one and a cleared filter takes its place, so
+ * memory stays constant and old ids are eventually forgotten. A false
+ * positive (an unseen id reported as seen) happens with roughly the
+ * configured probability.
+ */
+public class DuplicateFilter {
+    private final int bitsPerFilter;
+    private final int hashes;
+    private final int idsPerFilter;
+    private long[] current;
+    private long[] previous;
+    private int currentCount;
+
+    /**
+     * @param capacity ids remembered (at least) before old ones are forgotten
+     * @param falsePositiveRate wanted false positive probability, e.g. 0.001
+     */
+    public DuplicateFilter(int capacity, double falsePositiveRate) {
+        this.idsPerFilter = Math.max(1, capacity);
+        double ln2 = Math.log(2);
+        int bits = (int) Math.ceil(-idsPerFilter * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.bitsPerFilter = Math.max(64, bits);
+        this.hashes = Math.max(1, (int) Math.round((double) bitsPerFilter / idsPerFilter * ln2));
+        this.current = new long[(bitsPerFilter + 63) / 64];
+        this.previous = new long[current.length];
+    }
+
+    /**
+     * Record an id
+     * @return true if the id was new, false if it was (probably) seen before
+     */
+    public synchronized boolean add(String origin, long messageId) {
+        long h1 = mix(origin.hashCode() * 0x9E3779B97F4A7C15L + messageId);
+        long h2 = mix(h1 ^ messageId) | 1;
+        if (contains(current, h1, h2) || contains(previous, h1, h2)) {
+            return false;
+        }
+        if (currentCount >= idsPerFilter) {
+            long[] recycled = previous;
+            java.util.Arrays.fill(recycled, 0L);
+            previous = current;
+            current = recycled;
+            currentCount = 0;
+        }
+        for (int i = 0; i < hashes; i++) {
+            int bit = bitIndex(h1, h2, i);
+            current[bit >>> 6] |= 1L << bit;
+        }
+        currentCount++;
+        return true;
+    }
+
+    /**
+     * Memory used by the two filters, in bytes
+     */
+    public int sizeInBytes() {
+        return (current.length + previous.length) * 8;
+    }
+
+    private boolean contains(long[] bits, long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            int bit = bitIndex(h1, h2, i);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int bitIndex(long h1, long h2, int i) {
+        return (int) Math.floorMod(h1 + i * h2, (long) bitsPerFilter);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Phi accrual failure detector for one peer (Hayashibara et al.).
+ *
+ * Instead of a fixed timeout it keeps the recent intervals between
+ * heartbeats and reports phi: how unlikely it is, given that history, that
+ * the next heartbeat is still on its way. phi = 1 means about a 10% chance
+ * of a false alarm, phi = 3 about 0.1%. A peer on a jittery link thus gets
+ * more slack than one that has always answered like clockwork.
+ *
+ * Gaps longer than MAX_INTERVAL_FACTOR expected intervals are outages, not
+ * samples: the first heartbeat after one only restarts the clock, so the
+ * next failure is detected as quickly as before.
+ */
+public class FailureDetector {
+    private static final int WINDOW = 100;
+    private static final int MAX_INTERVAL_FACTOR = 5;
+
+    private final double[] intervals = new double[WINDOW];
+    private final long maxInterval;
+    private final double minStdDev;
+    private final double acceptablePause;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumSquares;
+    private long lastHeartbeat;
+
+    /**
+     * @param expectedInterval Heartbeat period in ms, used until real intervals are known
+     * @param minStdDev Lower bound for the deviation in ms, so a very regular peer isn't
+     *                  declared dead after one slightly late heartbeat
+     * @param acceptablePause Extra ms always allowed on top of the mean (e.g. for GC pauses)
+     */
+    public FailureDetector(long expectedInterval, long minStdDev, long acceptablePause) {
+        this.maxInterval = expectedInterval * MAX_INTERVAL_FACTOR;
+        this.minStdDev = minStdDev;
+        this.acceptablePause = acceptablePause;
+        this.lastHeartbeat = System.currentTimeMillis();
+        // Start with the expected interval, spread by a quarter either way
+        add(expectedInterval - expectedInterval / 4.0);
+        add(expectedInterval + expectedInterval / 4.0);
+    }
+
+    /**
+     * Record a heartbeat arriving at the given time (epoch ms)
+     */
+    public synchronized void heartbeat(long now) {
+        long interval = now - lastHeartbeat;
+        lastHeartbeat = now;
+        if (interval > 0 && interval <= maxInterval) {
+            add(interval);
+        }
+    }
+
+    /**
+     * Suspicion level at the given time (epoch ms); 0 right after a heartbeat,
+     * growing without bound while none arrives
+     */
+    public synchronized double phi(long now) {
+        double mean = sum / count;
+        double variance = sumSquares / count - mean * mean;
+        double stdDev = Math.max(minStdDev, Math.sqrt(Math.max(0, variance)));
+        double y = (now - lastHeartbeat - mean - acceptablePause) / stdDev;
+        // Logistic approximation of the normal distribution's tail
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double phi = y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        return Math.max(0, phi);
+    }
+
+    public synchronized long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    private void add(double interval) {
+        if (count == WINDOW) {
+            double old = intervals[next];
+            sum -= old;
+            sumSquares -= old * old;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % WINDOW;
+        sum += interval;
+        sumSquares += interval * interval;
+    }
+}
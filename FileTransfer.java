@@ -0,0 +1,462 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * File transfer between peers over a dedicated connection (/sendfile).
+ *
+ * The chat connection only carries the control frames; the file bytes go
+ * over a separate socket, sent with FileChannel.transferTo (sendfile(2) on
+ * Linux) and written with FileChannel.transferFrom, so the data never passes
+ * through the Java heap.
+ *
+ *   A -> B  FILE_OFFER   long id, long size, int crc32c, short length + UTF-8 name
+ *   B -> A  FILE_ACCEPT  long id, int data port, long offset, long token
+ *   A -> B  data socket: long token, long offset, then the file from offset to the end
+ *   B -> A  FILE_DONE    long id, byte status (1 ok, 0 corrupt, 2 refused)
+ *
+ * The token is random and only sent to the peer that made the offer, and
+ * the data connection must come from that peer's address. Offers larger than
+ * maxBytes, or than the free space in the inbox, are refused.
+ *
+ * B writes into chat_files_<port>/<name>.<crc>.part. If a transfer breaks
+ * off, the part file stays; offering the same file again resumes at its
+ * length. When the file is complete its CRC32C is checked before it gets
+ * its real name, and a bad part file is deleted so the next try starts over.
+ *
+ * The data connection is made within the connect timeout of ConnectionPool,
+ * and the receiver gives up on a sender that sends nothing for readTimeout
+ * (the part file is kept for a resume), so no transfer holds a thread forever.
+ *
+ * Settings: -Dp2p.file.port (any free port), -Dp2p.file.maxBytes (4 GB),
+ * -Dp2p.file.readTimeoutMillis (30000)
+ */
+public class FileTransfer implements Closeable {
+    public static final byte[] FRAME_TYPES = { Frame.FILE_OFFER, Frame.FILE_ACCEPT, Frame.FILE_DONE };
+    private static final long CHUNK = 8L * 1024 * 1024;
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+    private static final long OFFER_TIMEOUT_MS = 10 * 60_000;
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("p2p.file.readTimeoutMillis", 30_000);
+    // Free space left over after an accepted file
+    private static final long SPACE_RESERVE = 64L * 1024 * 1024;
+    private static final byte CORRUPT = 0;
+    private static final byte OK = 1;
+    private static final byte REFUSED = 2;
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final LongAdder bytesSent = Metrics.counter("file.sent.bytes");
+    private static final LongAdder bytesReceived = Metrics.counter("file.received.bytes");
+
+    /**
+     * A file we offered and are waiting to send
+     */
+    private static class Outgoing {
+        final long id;
+        final Path path;
+        final long size;
+
+        Outgoing(long id, Path path, long size) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A file we accepted and are waiting to receive
+     */
+    private static class Incoming {
+        final long id;
+        final Peer from;
+        final String name;
+        final long size;
+        final int crc;
+        final Path part;
+        final long offset;
+        final long token;
+        final long createdAt = System.currentTimeMillis();
+
+        Incoming(long id, Peer from, String name, long size, int crc, Path part, long offset, long token) {
+            this.id = id;
+            this.from = from;
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+            this.part = part;
+            this.offset = offset;
+            this.token = token;
+        }
+    }
+
+    private final Path inbox;
+    private final int dataPort;
+    private final long maxBytes;
+    private final ExecutorService executor = Threads.newPerTaskExecutor("file-transfer");
+    private final ConcurrentHashMap<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    // Accepted offers by token
+    private final ConcurrentHashMap<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    private ServerSocketChannel listener;
+    private volatile boolean closed;
+
+    /**
+     * @param port Chat port of this node (names the download directory)
+     */
+    public FileTransfer(int port) throws IOException {
+        this(Paths.get("chat_files_" + port), Integer.getInteger("p2p.file.port", 0),
+             Long.getLong("p2p.file.maxBytes", 4L << 30));
+    }
+
+    /**
+     * @param inbox Where received files are stored
+     * @param dataPort Port for incoming data connections (0 = any free port)
+     * @param maxBytes Largest file accepted
+     */
+    public FileTransfer(Path inbox, int dataPort, long maxBytes) throws IOException {
+        this.inbox = inbox;
+        this.dataPort = dataPort;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(inbox);
+    }
+
+    /**
+     * Offer a file to a peer; the transfer runs in the background
+     */
+    public void send(Peer peer, Path path) {
+        executor.execute(() -> {
+            try {
+                long size = Files.size(path);
+                System.out.println("📦 Checksumming " + path.getFileName() + " (" + formatSize(size) + ")...");
+                int crc = checksum(path, size);
+                long id = Sender.nextMessageId();
+                outgoing.put(id, new Outgoing(id, path, size));
+
+                byte[] name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer payload = ByteBuffer.allocate(8 + 8 + 4 + 2 + name.length);
+                payload.putLong(id).putLong(size).putInt(crc).putShort((short) name.length).put(name);
+                if (!Sender.sendFrame(peer, frame(Frame.FILE_OFFER, payload))) {
+                    outgoing.remove(id);
+                    System.out.println("❌ Cannot offer " + path.getFileName() + " to " + peer.getId());
+                }
+            } catch (IOException e) {
+                System.out.println("❌ Cannot read " + path + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Handler for FILE_* frames (register with the Dispatcher)
+     */
+    public void onFrame(Frame frame, InetSocketAddress remote) {
+        Peer peer = Dispatcher.replyPeer(frame, remote);
+        if (peer == null || closed) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+                switch (frame.getType()) {
+                    case Frame.FILE_OFFER:
+                        onOffer(peer, payload);
+                        break;
+                    case Frame.FILE_ACCEPT:
+                        onAccept(peer, payload);
+                        break;
+                    case Frame.FILE_DONE:
+                        onDone(peer, payload);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (BufferUnderflowException e) {
+                System.err.println("[File Error] Bad file frame from " + peer.getId());
+            } catch (IOException e) {
+                System.err.println("[File Error] " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * B: accept the offer, resuming from a part file left by an earlier try
+     */
+    private void onOffer(Peer peer, ByteBuffer in) throws IOException {
+        long id = in.getLong();
+        long size = in.getLong();
+        int crc = in.getInt();
+        byte[] nameBytes = new byte[in.getShort() & 0xFFFF];
+        in.get(nameBytes);
+        String name = safeName(new String(nameBytes, StandardCharsets.UTF_8));
+
+        incoming.values().removeIf(old -> System.currentTimeMillis() - old.createdAt > OFFER_TIMEOUT_MS);
+        Path part = inbox.resolve(name + "." + Integer.toHexString(crc) + ".part");
+        long offset = Files.exists(part) ? Math.min(Files.size(part), size) : 0;
+        long free = Files.getFileStore(inbox).getUsableSpace();
+        if (size < 0 || size > maxBytes || size - offset > free - SPACE_RESERVE) {
+            System.out.println("\n🚫 Refused " + name + " (" + formatSize(size) + ") from " + peer.getId() +
+                               (size > maxBytes ? ": larger than " + formatSize(maxBytes) : ": not enough disk space"));
+            Sender.sendFrame(peer, frame(Frame.FILE_DONE, ByteBuffer.allocate(9).putLong(id).put(REFUSED)));
+            return;
+        }
+        int port = startListener();
+        long token;
+        do {
+            token = random.nextLong();
+        } while (incoming.containsKey(token));
+        incoming.put(token, new Incoming(id, peer, name, size, crc, part, offset, token));
+
+        System.out.println("\n📥 Receiving " + name + " (" + formatSize(size) + ") from " + peer.getId() +
+                           (offset > 0 ? ", resuming at " + formatSize(offset) : ""));
+        ByteBuffer payload = ByteBuffer.allocate(8 + 4 + 8 + 8);
+        payload.putLong(id).putInt(port).putLong(offset).putLong(token);
+        Sender.sendFrame(peer, frame(Frame.FILE_ACCEPT, payload));
+    }
+
+    /**
+     * A: stream the file from the accepted offset over a new connection
+     */
+    private void onAccept(Peer peer, ByteBuffer in) throws IOException {
+        long id = in.getLong();
+        int port = in.getInt();
+        long offset = in.getLong();
+        long token = in.getLong();
+        Outgoing out = outgoing.get(id);
+        if (out == null || offset < 0 || offset > out.size) {
+            return;
+        }
+        long start = System.nanoTime();
+        long pos = offset;
+        try (SocketChannel socket = connect(new InetSocketAddress(peer.getIp(), port));
+             FileChannel file = FileChannel.open(out.path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16).putLong(token).putLong(offset);
+            header.flip();
+            while (header.hasRemaining()) {
+                socket.write(header);
+            }
+            while (pos < out.size) {
+                long n = file.transferTo(pos, Math.min(CHUNK, out.size - pos), socket);
+                if (n <= 0) {
+                    throw new EOFException("file shrank while sending");
+                }
+                pos += n;
+                bytesSent.add(n);
+            }
+            System.out.println("\n📤 Sent " + out.path.getFileName() + " to " + peer.getId() + ": " +
+                               formatSize(pos - offset) + rate(pos - offset, start) +
+                               (offset > 0 ? " (resumed at " + formatSize(offset) + ")" : ""));
+        } catch (IOException e) {
+            outgoing.remove(id);
+            System.out.println("\n⚠️ Transfer of " + out.path.getFileName() + " interrupted at " + formatSize(pos) +
+                               ": " + e.getMessage() + " - /sendfile again to resume");
+        }
+    }
+
+    private static SocketChannel connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, ConnectionPool.DEFAULT_CONNECT_TIMEOUT_MS);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A: the receiver's checksum verdict
+     */
+    private void onDone(Peer peer, ByteBuffer in) {
+        Outgoing out = outgoing.remove(in.getLong());
+        if (out == null) {
+            return;
+        }
+        byte status = in.get();
+        if (status == OK) {
+            System.out.println("\n✅ " + peer.getId() + " received " + out.path.getFileName() + " (checksum OK)");
+        } else if (status == REFUSED) {
+            System.out.println("\n🚫 " + peer.getId() + " refused " + out.path.getFileName() + " (too large, or not enough disk space)");
+        } else {
+            System.out.println("\n❌ " + peer.getId() + " got a corrupt copy of " + out.path.getFileName() + " - send it again");
+        }
+    }
+
+    /**
+     * Open the data listener on first use
+     * @return its port
+     */
+    private synchronized int startListener() throws IOException {
+        if (listener == null) {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(dataPort));
+            Thread acceptor = new Thread(this::acceptLoop, "file-receiver");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        return ((InetSocketAddress) listener.getLocalAddress()).getPort();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel socket = listener.accept();
+                executor.execute(() -> receive(socket));
+            } catch (IOException | RejectedExecutionException e) {
+                if (!closed) {
+                    System.err.println("[File Error] Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * B: write the data connection into the part file, then verify it
+     */
+    private void receive(SocketChannel socket) {
+        Incoming in = null;
+        long pos = 0;
+        long start = System.nanoTime();
+        try (SocketChannel ch = socket) {
+            // SO_TIMEOUT only applies to reads through the socket's stream, not the channel
+            ch.socket().setSoTimeout(READ_TIMEOUT_MS);
+            ReadableByteChannel data = Channels.newChannel(ch.socket().getInputStream());
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining()) {
+                if (data.read(header) < 0) {
+                    return;
+                }
+            }
+            header.flip();
+            Incoming offer = incoming.get(header.getLong());
+            if (offer == null || header.getLong() != offer.offset || !fromPeer(ch, offer.from)
+                    || !incoming.remove(offer.token, offer)) {
+                return; // Unknown, stale or from another host
+            }
+            in = offer;
+            try (FileChannel file = FileChannel.open(in.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                file.truncate(in.offset);
+                pos = in.offset;
+                while (pos < in.size) {
+                    long n = file.transferFrom(data, pos, Math.min(CHUNK, in.size - pos));
+                    if (n <= 0) {
+                        break; // Sender closed the connection
+                    }
+                    pos += n;
+                    bytesReceived.add(n);
+                }
+            }
+        } catch (IOException e) {
+            // Keep what we have; the next offer resumes from it
+        }
+        if (in == null) {
+            return;
+        }
+        if (pos < in.size) {
+            System.out.println("\n⚠️ Transfer of " + in.name + " from " + in.from.getId() + " interrupted at " +
+                               formatSize(pos) + " of " + formatSize(in.size) + ", kept for resume");
+            return;
+        }
+        finish(in, start);
+    }
+
+    private void finish(Incoming in, long start) {
+        boolean ok;
+        try {
+            ok = checksum(in.part, in.size) == in.crc;
+            if (ok) {
+                Path target = uniqueTarget(in.name);
+                Files.move(in.part, target, StandardCopyOption.ATOMIC_MOVE);
+                System.out.println("\n📥 Received " + target + " from " + in.from.getId() + " (" +
+                                   formatSize(in.size) + rate(in.size - in.offset, start) + ", checksum OK)");
+            } else {
+                Files.deleteIfExists(in.part);
+                System.out.println("\n❌ Checksum mismatch for " + in.name + " from " + in.from.getId() + ", discarded");
+            }
+        } catch (IOException e) {
+            System.err.println("[File Error] Cannot store " + in.name + ": " + e.getMessage());
+            ok = false;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(9);
+        payload.putLong(in.id).put(ok ? OK : CORRUPT);
+        Sender.sendFrame(in.from, frame(Frame.FILE_DONE, payload));
+    }
+
+    /**
+     * Whether a data connection comes from the host that made the offer
+     */
+    private static boolean fromPeer(SocketChannel ch, Peer peer) throws IOException {
+        InetAddress remote = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+        return remote.equals(InetAddress.getByName(peer.getIp()));
+    }
+
+    /**
+     * CRC32C of the first size bytes, read through memory maps (no heap copies)
+     */
+    static int checksum(Path path, long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+                crc.update(map);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private Path uniqueTarget(String name) {
+        Path target = inbox.resolve(name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; Files.exists(target); i++) {
+            target = inbox.resolve(base + " (" + i + ")" + ext);
+        }
+        return target;
+    }
+
+    /**
+     * File name without any directory part, so a peer can't write outside the inbox
+     */
+    private static String safeName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        base = base.replaceAll("[\\x00-\\x1f]", "_");
+        return base.isEmpty() || base.equals(".") || base.equals("..") ? "file" : base;
+    }
+
+    private static Frame frame(byte type, ByteBuffer payload) {
+        return new Frame(type, (byte) 0, Sender.nextMessageId(), System.currentTimeMillis(),
+                         Sender.getLocalId(), payload.array());
+    }
+
+    private static String rate(long bytes, long startNanos) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        return String.format(" in %.1f s, %.1f MB/s", seconds, bytes / seconds / (1024 * 1024));
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes < 1024 * 1024) {
+            return bytes / 1024 + " KB";
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+}
@@ -0,0 +1,90 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One unit of the wire protocol (see FrameCodec for the byte layout).
+ * The payload is kept as raw UTF-8 bytes and only decoded when asked for.
+ */
+public class Frame {
+    // Frame types
+    public static final byte MESSAGE = 1;
+    public static final byte GOSSIP = 2;
+    public static final byte HELLO = 3;
+    public static final byte SYNC_SUMMARY = 4;
+    public static final byte SYNC_IDS = 5;
+    public static final byte SYNC_REQUEST = 6;
+    public static final byte SYNC_DATA = 7;
+    public static final byte FILE_OFFER = 8;
+    public static final byte FILE_ACCEPT = 9;
+    public static final byte FILE_DONE = 10;
+    public static final byte PING = 11;
+    public static final byte PONG = 12;
+    public static final byte PEX = 13;
+    public static final byte ROOM_MEMBERSHIP = 14;
+    public static final byte ROOM_MESSAGE = 15;
+    public static final byte SEQ_MESSAGE = 16;
+    public static final byte ACK = 17;
+
+    // Flag bits
+    public static final byte FLAG_COMPRESSED = 0x01;
+
+    private final byte type;
+    private final byte flags;
+    private final long messageId;
+    private final long timestamp;
+    private final String senderId;
+    private final byte[] payload;
+
+    public Frame(byte type, byte flags, long messageId, long timestamp, String senderId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+        this.senderId = senderId;
+        this.payload = payload;
+    }
+
+    /**
+     * Create a chat message frame stamped with the current time
+     */
+    public static Frame message(long messageId, String senderId, String text) {
+        return new Frame(MESSAGE, (byte) 0, messageId, System.currentTimeMillis(), senderId,
+                         text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Payload decoded as UTF-8 text
+     */
+    public String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{type=" + type + ", id=" + messageId + ", from=" + senderId +
+               ", " + payload.length + " bytes}";
+    }
+}
@@ -0,0 +1,318 @@
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+/**
+ * Encoder/decoder for the length-prefixed binary wire format.
+ *
+ * Layout (big endian):
+ *   int    length      number of bytes that follow this field
+ *   byte   version     PROTOCOL_VERSION
+ *   byte   type        Frame.MESSAGE, ...
+ *   byte   flags       Frame.FLAG_COMPRESSED, ...
+ *   long   messageId
+ *   long   timestamp   epoch millis
+ *   short  senderId length, followed by the UTF-8 senderId bytes
+ *   ...    payload     UTF-8, the rest of the frame
+ *
+ * Compression: a sender that wants to compress announces it by sending a
+ * HELLO frame with FLAG_COMPRESSED as the first frame on the connection.
+ * After that, payloads of at least the threshold size are deflated (when
+ * that makes them smaller) and flagged. A compressed payload is an int
+ * holding the original length followed by deflate data. Each frame is
+ * compressed on its own, with a preset dictionary of common chat words, so
+ * frames stay independent and an encoded frame can be shared between
+ * connections.
+ *
+ * One codec is used per connection; it is not thread-safe.
+ * The Deflater/Inflater are reused for every frame and released by close().
+ */
+public class FrameCodec {
+    public static final byte PROTOCOL_VERSION = 1;
+    public static final int LENGTH_FIELD = 4;
+    public static final int HEADER_SIZE = 1 + 1 + 1 + 8 + 8 + 2;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    public static final int READ_BUFFER_SIZE = 4 * 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    // Preset deflate dictionary: words that show up in most chat lines
+    private static final byte[] DICTIONARY = (
+        "From Me →  : the and you that have for not with this but what are was can just " +
+        "will your all about know like get when there out how one would yes no ok okay " +
+        "thanks thank please hello hi hey good morning see later sorry message peer node " +
+        "connected error exception failed at java.lang. java.util. INFO WARN ERROR DEBUG " +
+        "\n\tat ").getBytes(StandardCharsets.UTF_8);
+
+    // 0 = never compress outgoing payloads
+    private int compressionThreshold;
+    // Set once the peer's HELLO announced compression
+    private boolean inflateAllowed;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    // The same peer sends many frames on one connection: reuse its decoded id
+    private byte[] lastSenderBytes = new byte[0];
+    private String lastSenderId = "";
+
+    /**
+     * Codec for an outgoing connection, with compression configured from
+     * -Dp2p.compress (default true) and -Dp2p.compress.threshold (bytes)
+     */
+    public static FrameCodec outbound() {
+        FrameCodec codec = new FrameCodec();
+        if (Boolean.parseBoolean(System.getProperty("p2p.compress", "true"))) {
+            codec.enableCompression(Integer.getInteger("p2p.compress.threshold", DEFAULT_COMPRESSION_THRESHOLD));
+        }
+        return codec;
+    }
+
+    /**
+     * Compress outgoing payloads of at least the given size.
+     * The connection must start with helloFrame() so the receiver accepts them.
+     */
+    public void enableCompression(int threshold) {
+        this.compressionThreshold = Math.max(1, threshold);
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionThreshold > 0;
+    }
+
+    /**
+     * First frame of a connection, announcing whether we compress
+     */
+    public Frame helloFrame(String senderId) {
+        byte flags = isCompressionEnabled() ? Frame.FLAG_COMPRESSED : 0;
+        return new Frame(Frame.HELLO, flags, 0, System.currentTimeMillis(), senderId, new byte[0]);
+    }
+
+    /**
+     * Number of bytes the encoded frame will take at most, including the length prefix
+     */
+    public static int encodedSize(Frame frame) {
+        return LENGTH_FIELD + HEADER_SIZE + senderBytes(frame).length + frame.getPayload().length;
+    }
+
+    private static byte[] senderBytes(Frame frame) {
+        return frame.getSenderId().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a frame into the buffer at its current position
+     * @throws BufferOverflowException if the buffer is too small
+     * @throws IllegalArgumentException if the frame or its sender id is too large to encode
+     */
+    public void encode(Frame frame, ByteBuffer out) {
+        byte[] sender = senderBytes(frame);
+        byte[] payload = frame.getPayload();
+        byte flags = frame.getFlags();
+        if (compressionThreshold > 0 && payload.length >= compressionThreshold) {
+            byte[] packed = deflate(payload);
+            if (packed != null) {
+                payload = packed;
+                flags |= Frame.FLAG_COMPRESSED;
+            }
+        }
+        if (sender.length > 0xFFFF) {
+            // The length goes into an unsigned short
+            throw new IllegalArgumentException("Sender id too long: " + sender.length + " bytes");
+        }
+        int length = HEADER_SIZE + sender.length + payload.length;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame too large: " + length + " bytes");
+        }
+        if (out.remaining() < LENGTH_FIELD + length) {
+            throw new BufferOverflowException();
+        }
+        out.putInt(length);
+        out.put(PROTOCOL_VERSION);
+        out.put(frame.getType());
+        out.put(flags);
+        out.putLong(frame.getMessageId());
+        out.putLong(frame.getTimestamp());
+        out.putShort((short) sender.length);
+        out.put(sender);
+        out.put(payload);
+    }
+
+    /**
+     * Encode a frame into a new buffer, ready for writing
+     */
+    public ByteBuffer encode(Frame frame) {
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(frame));
+        encode(frame, out);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Size of the next frame (including the length prefix) if its length
+     * field is already in the buffer, or -1 if not enough bytes have arrived.
+     * Does not move the buffer position.
+     */
+    public static int peekFrameSize(ByteBuffer in) throws ProtocolException {
+        if (in.remaining() < LENGTH_FIELD) {
+            return -1;
+        }
+        int length = in.getInt(in.position());
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Bad frame length: " + length);
+        }
+        return LENGTH_FIELD + length;
+    }
+
+    /**
+     * Decode the next frame from a buffer in read mode.
+     * @return the frame, or null if the buffer does not hold a complete frame yet
+     *         (in that case the buffer position is left unchanged)
+     */
+    public Frame decode(ByteBuffer in) throws ProtocolException {
+        int size = peekFrameSize(in);
+        if (size < 0 || in.remaining() < size) {
+            return null;
+        }
+        int end = in.position() + size;
+        in.getInt();
+
+        byte version = in.get();
+        if (version != PROTOCOL_VERSION) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+        byte type = in.get();
+        byte flags = in.get();
+        long messageId = in.getLong();
+        long timestamp = in.getLong();
+        int senderLength = in.getShort() & 0xFFFF;
+        if (in.position() + senderLength > end) {
+            throw new ProtocolException("Bad sender id length: " + senderLength);
+        }
+        String senderId = readSenderId(in, senderLength);
+
+        byte[] payload = new byte[end - in.position()];
+        in.get(payload);
+
+        if (type == Frame.HELLO) {
+            inflateAllowed = (flags & Frame.FLAG_COMPRESSED) != 0;
+        } else if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+            if (!inflateAllowed) {
+                throw new ProtocolException("Compressed frame without compression HELLO");
+            }
+            payload = inflate(payload);
+            flags &= ~Frame.FLAG_COMPRESSED;
+        }
+        return new Frame(type, flags, messageId, timestamp, senderId, payload);
+    }
+
+    /**
+     * Deflate a payload, or return null if that doesn't make it smaller
+     */
+    private byte[] deflate(byte[] payload) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+
+        // Only worth it if the result (plus its length field) is smaller
+        byte[] out = new byte[payload.length];
+        int n = deflater.deflate(out, 4, out.length - 4);
+        if (!deflater.finished()) {
+            return null;
+        }
+        ByteBuffer.wrap(out).putInt(payload.length);
+        byte[] packed = new byte[4 + n];
+        System.arraycopy(out, 0, packed, 0, packed.length);
+        return packed;
+    }
+
+    private byte[] inflate(byte[] packed) throws ProtocolException {
+        if (packed.length < 4) {
+            throw new ProtocolException("Truncated compressed payload");
+        }
+        int length = ByteBuffer.wrap(packed).getInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Bad uncompressed length: " + length);
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(packed, 4, packed.length - 4);
+        byte[] out = new byte[length];
+        int n = 0;
+        try {
+            while (n < length) {
+                int got = inflater.inflate(out, n, length - n);
+                if (got == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        break;
+                    }
+                }
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed payload: " + e.getMessage());
+        }
+        if (n != length) {
+            throw new ProtocolException("Compressed payload shorter than announced");
+        }
+        return out;
+    }
+
+    /**
+     * Release the native compression state
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * Prepare a read buffer for the next socket read after decoding: keeps
+     * the unread bytes and grows the buffer if the pending frame won't fit.
+     * A buffer that was grown for a large frame goes back to the normal size
+     * once it is empty.
+     * @param in buffer in read mode
+     * @return buffer in write mode (may be a new buffer)
+     */
+    public static ByteBuffer compact(ByteBuffer in) throws ProtocolException {
+        if (!in.hasRemaining() && in.capacity() > READ_BUFFER_SIZE) {
+            return ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        int needed = peekFrameSize(in);
+        if (needed > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            bigger.put(in);
+            return bigger;
+        }
+        in.compact();
+        return in;
+    }
+
+    private String readSenderId(ByteBuffer in, int length) {
+        int start = in.position();
+        boolean same = length == lastSenderBytes.length;
+        for (int i = 0; same && i < length; i++) {
+            same = in.get(start + i) == lastSenderBytes[i];
+        }
+        in.position(start + length);
+        if (!same) {
+            lastSenderBytes = new byte[length];
+            in.get(start, lastSenderBytes);
+            lastSenderId = new String(lastSenderBytes, StandardCharsets.UTF_8);
+        }
+        return lastSenderId;
+    }
+}
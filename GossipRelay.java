@@ -0,0 +1,120 @@
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Epidemic (gossip) relay: every node forwards a message it sees for the
+ * first time to a few random peers, until its TTL runs out. With fanout f
+ * a message reaches N nodes in about log_f(N) rounds, without anybody
+ * being connected to everyone.
+ *
+ * GOSSIP frames keep the origin's sender id, message id and timestamp on
+ * every hop; the payload is one TTL byte followed by the UTF-8 text.
+ */
+public class GossipRelay {
+    public static final int DEFAULT_FANOUT = 3;
+    public static final int DEFAULT_TTL = 8;
+
+    private final Peers peers;
+    private final MessageHistory history;
+    private final DuplicateFilter seen;
+    private final int fanout;
+    private final int ttl;
+    private volatile HistorySync sync;
+
+    public GossipRelay(Peers peers, MessageHistory history) {
+        this(peers, history,
+             Integer.getInteger("p2p.gossip.fanout", DEFAULT_FANOUT),
+             Integer.getInteger("p2p.gossip.ttl", DEFAULT_TTL));
+    }
+
+    public GossipRelay(Peers peers, MessageHistory history, int fanout, int ttl) {
+        this.peers = peers;
+        this.history = history;
+        this.fanout = fanout;
+        this.ttl = Math.min(ttl, 127);
+        this.seen = new DuplicateFilter(100_000, 0.001);
+    }
+
+    /**
+     * Keep every gossip message in this sync store, so peers that were
+     * offline can fetch it later (see HistorySync)
+     */
+    public void setHistorySync(HistorySync sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Start spreading a new message from this node
+     * @return number of peers it was handed to
+     */
+    public int publish(String text) {
+        Frame frame = frame(Sender.nextMessageId(), Sender.getLocalId(), System.currentTimeMillis(), ttl, text);
+        seen.add(frame.getSenderId(), frame.getMessageId());
+        if (sync != null) {
+            sync.record(frame.getSenderId(), frame.getMessageId(), frame.getTimestamp(), text);
+        }
+        return forward(frame);
+    }
+
+    /**
+     * Handler for incoming GOSSIP frames (register with the Dispatcher)
+     */
+    public void onFrame(Frame frame, InetSocketAddress remote) {
+        byte[] payload = frame.getPayload();
+        if (payload.length < 1 || !seen.add(frame.getSenderId(), frame.getMessageId())) {
+            return;
+        }
+        int remaining = payload[0];
+        String text = new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+        if (sync != null && !sync.record(frame.getSenderId(), frame.getMessageId(), frame.getTimestamp(), text)) {
+            return; // Already fetched by a history sync
+        }
+        Receiver.showMessage(frame.getSenderId() + " (gossip)", text, history);
+
+        if (remaining > 1) {
+            forward(frame(frame.getMessageId(), frame.getSenderId(), frame.getTimestamp(), remaining - 1, text));
+        }
+    }
+
+    private int forward(Frame frame) {
+        List<Peer> targets = randomPeers(fanout);
+        for (Peer peer : targets) {
+            Sender.sendFrameAsync(peer, frame);
+        }
+        return targets.size();
+    }
+
+    /**
+     * Pick up to count peers uniformly at random (reservoir sampling, no copy of the registry)
+     */
+    private List<Peer> randomPeers(int count) {
+        List<Peer> chosen = new ArrayList<>(count);
+        Random random = ThreadLocalRandom.current();
+        int seenPeers = 0;
+        for (Peer peer : peers.getAllPeers()) {
+            if (peer.getState() == Peer.State.DOWN) {
+                continue;
+            }
+            if (chosen.size() < count) {
+                chosen.add(peer);
+            } else {
+                int j = random.nextInt(seenPeers + 1);
+                if (j < count) {
+                    chosen.set(j, peer);
+                }
+            }
+            seenPeers++;
+        }
+        return chosen;
+    }
+
+    private static Frame frame(long messageId, String origin, long timestamp, int ttl, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[bytes.length + 1];
+        payload[0] = (byte) ttl;
+        System.arraycopy(bytes, 0, payload, 1, bytes.length);
+        return new Frame(Frame.GOSSIP, (byte) 0, messageId, timestamp, origin, payload);
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Liveness of the known peers.
+ *
+ * Every interval each peer gets a PING over its pooled connection and
+ * answers with a PONG (over its own connection back to us). The arrival
+ * times of the PONGs feed a FailureDetector per peer, and its phi value sets
+ * the peer's state: UP, SUSPECT at suspectPhi, DOWN at downPhi. A refused
+ * connection marks a peer DOWN at once. Sender fails sends to DOWN peers
+ * immediately instead of waiting for a connect timeout; the heartbeat keeps
+ * probing them (less often) and brings them back UP when they answer.
+ * Peers that stay DOWN for removeAfter are dropped from the registry.
+ *
+ * PING and PONG carry one long: the sender's System.nanoTime(), echoed back
+ * so the round-trip time can be measured.
+ *
+ * Settings: -Dp2p.heartbeat.millis (1000, 0 = off), -Dp2p.heartbeat.suspectPhi (3),
+ * -Dp2p.heartbeat.downPhi (8), -Dp2p.heartbeat.removeMinutes (10, 0 = never)
+ */
+public class Heartbeat implements Closeable {
+    public static final byte[] FRAME_TYPES = { Frame.PING, Frame.PONG };
+    // DOWN peers are only probed every few ticks
+    private static final int DOWN_PROBE_EVERY = 5;
+
+    /**
+     * Told about every state change
+     */
+    public interface Listener {
+        void stateChanged(Peer peer, Peer.State from, Peer.State to);
+    }
+
+    private static final LatencyHistogram rtt = Metrics.histogram("heartbeat.rtt");
+    private static final LongAdder missed = Metrics.counter("heartbeat.failed");
+
+    private final Peers peers;
+    private final long intervalMs;
+    private final double suspectPhi;
+    private final double downPhi;
+    private final long removeAfterMs;
+    private final ConcurrentHashMap<String, FailureDetector> detectors = new ConcurrentHashMap<>();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("heartbeat"));
+    // Pings may block in connect, so they don't run on the timer thread
+    private final ExecutorService pinger = Threads.newPerTaskExecutor("heartbeat-ping");
+    private volatile Listener listener;
+    private long ticks;
+
+    public Heartbeat(Peers peers) {
+        this(peers,
+             Long.getLong("p2p.heartbeat.millis", 1000),
+             Double.parseDouble(System.getProperty("p2p.heartbeat.suspectPhi", "3")),
+             Double.parseDouble(System.getProperty("p2p.heartbeat.downPhi", "8")),
+             TimeUnit.MINUTES.toMillis(Long.getLong("p2p.heartbeat.removeMinutes", 10)));
+    }
+
+    public Heartbeat(Peers peers, long intervalMs, double suspectPhi, double downPhi, long removeAfterMs) {
+        this.peers = peers;
+        this.intervalMs = intervalMs;
+        this.suspectPhi = suspectPhi;
+        this.downPhi = downPhi;
+        this.removeAfterMs = removeAfterMs;
+        Metrics.gauge("peers.up", () -> count(Peer.State.UP));
+        Metrics.gauge("peers.suspect", () -> count(Peer.State.SUSPECT));
+        Metrics.gauge("peers.down", () -> count(Peer.State.DOWN));
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void start() {
+        if (intervalMs > 0) {
+            timer.scheduleAtFixedRate(this::tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        pinger.shutdownNow();
+    }
+
+    /**
+     * Handler for PING and PONG frames (register with the Dispatcher)
+     */
+    public void onFrame(Frame frame, InetSocketAddress remote) {
+        Peer from = Dispatcher.replyPeer(frame, remote);
+        if (from == null || frame.getPayload().length < 8) {
+            return;
+        }
+        if (frame.getType() == Frame.PING) {
+            // Answered even for nodes we don't know; they are tracking us
+            Sender.sendFrameAsync(from, frame(Frame.PONG, frame.getPayload()));
+            return;
+        }
+        Peer peer = peers.getPeer(from.getId());
+        if (peer == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        detector(peer).heartbeat(now);
+        rtt.record(System.nanoTime() - ByteBuffer.wrap(frame.getPayload()).getLong());
+        update(peer, Peer.State.UP);
+    }
+
+    private void tick() {
+        ticks++;
+        long now = System.currentTimeMillis();
+        for (Peer peer : peers.getAllPeers()) {
+            double phi = detector(peer).phi(now);
+            Peer.State state = phi >= downPhi ? Peer.State.DOWN
+                             : phi >= suspectPhi ? Peer.State.SUSPECT : Peer.State.UP;
+            // Only a heartbeat (or a refused connect) moves a peer back up or down faster
+            if (peer.getState() != Peer.State.DOWN || state == Peer.State.DOWN) {
+                update(peer, state);
+            }
+            if (peer.getState() == Peer.State.DOWN) {
+                if (removeAfterMs > 0 && now - peer.getStateSince() > removeAfterMs) {
+                    peers.removePeer(peer.getId());
+                    detectors.remove(peer.getId());
+                    Sender.setDown(peer.getId(), false);
+                    Sender.getPool().close(peer.getId());
+                    System.out.println("\n🗑️ Removed " + peer.getId() + " (down for " +
+                                       (now - peer.getStateSince()) / 60_000 + " min)");
+                    continue;
+                }
+                if (ticks % DOWN_PROBE_EVERY != 0) {
+                    continue;
+                }
+            }
+            ping(peer);
+        }
+    }
+
+    /**
+     * Send one PING straight through the pool (Sender would fail fast for DOWN peers)
+     */
+    private void ping(Peer peer) {
+        if (!inFlight.add(peer.getId())) {
+            return; // Previous ping still connecting
+        }
+        try {
+            pinger.execute(() -> {
+                try {
+                    byte[] payload = ByteBuffer.allocate(8).putLong(System.nanoTime()).array();
+                    Sender.getPool().send(peer, frame(Frame.PING, payload));
+                } catch (ConnectException e) {
+                    // Nothing listening there: no need to wait for phi to grow
+                    missed.increment();
+                    update(peer, Peer.State.DOWN);
+                } catch (IOException e) {
+                    missed.increment();
+                } finally {
+                    inFlight.remove(peer.getId());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(peer.getId());
+        }
+    }
+
+    private void update(Peer peer, Peer.State state) {
+        Peer.State old;
+        synchronized (peer) {
+            old = peer.getState();
+            if (old == state) {
+                return;
+            }
+            peer.setState(state);
+            Sender.setDown(peer.getId(), state == Peer.State.DOWN);
+        }
+        switch (state) {
+            case UP:
+                System.out.println("\n✅ " + peer.getId() + " is up");
+                break;
+            case SUSPECT:
+                System.out.println("\n⚠️ " + peer.getId() + " is not answering");
+                break;
+            case DOWN:
+                System.out.println("\n💀 " + peer.getId() + " is down");
+                break;
+            default:
+                break;
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.stateChanged(peer, old, state);
+        }
+    }
+
+    private FailureDetector detector(Peer peer) {
+        return detectors.computeIfAbsent(peer.getId(),
+            id -> new FailureDetector(intervalMs, Math.max(50, intervalMs / 10), intervalMs));
+    }
+
+    private long count(Peer.State state) {
+        return peers.getAllPeers().stream().filter(p -> p.getState() == state).count();
+    }
+
+    private static Frame frame(byte type, byte[] payload) {
+        return new Frame(type, (byte) 0, Sender.nextMessageId(), System.currentTimeMillis(),
+                         Sender.getLocalId(), payload);
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Rotated chat_history segments.
+ *
+ * HistoryWriter moves the live history file in here when it reaches the
+ * size or age limit of the Policy. A background thread then gzips it and
+ * deletes the oldest archives beyond the retention limits. lines() streams
+ * every archived line, oldest first, decompressing on the fly, so search
+ * and replay never need a whole archive in memory.
+ *
+ * Archive names: <base>.<yyyyMMdd-HHmmss-SSS>.txt, then .txt.gz once compressed.
+ * A retention listener hears when archives are deleted, so copies of the
+ * same messages elsewhere (the message log) can follow the same limits.
+ */
+public class HistoryArchive {
+    /**
+     * When to rotate and how much to keep, read from system properties:
+     * -Dp2p.history.rotateBytes (64 MB), -Dp2p.history.rotateMinutes (0 = never by age),
+     * -Dp2p.history.archiveMaxBytes (1 GB, compressed), -Dp2p.history.archiveMaxDays (0 = forever)
+     */
+    public static class Policy {
+        final long rotateBytes;
+        final long rotateMillis;
+        final long maxBytes;
+        final long maxAgeMillis;
+
+        public Policy(long rotateBytes, long rotateMillis, long maxBytes, long maxAgeMillis) {
+            this.rotateBytes = rotateBytes;
+            this.rotateMillis = rotateMillis;
+            this.maxBytes = maxBytes;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        public static Policy fromSystemProperties() {
+            return new Policy(
+                Long.getLong("p2p.history.rotateBytes", 64L * 1024 * 1024),
+                TimeUnit.MINUTES.toMillis(Long.getLong("p2p.history.rotateMinutes", 0)),
+                Long.getLong("p2p.history.archiveMaxBytes", 1024L * 1024 * 1024),
+                TimeUnit.DAYS.toMillis(Long.getLong("p2p.history.archiveMaxDays", 0))
+            );
+        }
+
+        /**
+         * True if a file of this size, started at this time, is due for rotation
+         */
+        boolean shouldRotate(long size, long startedAt) {
+            return (rotateBytes > 0 && size >= rotateBytes)
+                || (rotateMillis > 0 && System.currentTimeMillis() - startedAt >= rotateMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "rotate at " + rotateBytes / 1024 + " KB" +
+                   (rotateMillis > 0 ? " or " + rotateMillis / 60000 + " min" : "") +
+                   ", keep " + maxBytes / 1024 + " KB" +
+                   (maxAgeMillis > 0 ? " / " + maxAgeMillis / 86_400_000 + " days" : "");
+        }
+    }
+
+    private static final String STAMP_FORMAT = "yyyyMMdd-HHmmss-SSS";
+    private static final int STAMP_LENGTH = STAMP_FORMAT.length();
+
+    private final Path dir;
+    private final String baseName;
+    private final Policy policy;
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(Threads.daemonFactory("history-archiver"));
+    private volatile LongConsumer retentionListener;
+    // Rotation time of the newest archive retention deleted, 0 for none
+    private volatile long droppedUpTo;
+
+    public HistoryArchive(String directory, String baseName, Policy policy) throws IOException {
+        this.dir = Paths.get(directory);
+        this.baseName = baseName;
+        this.policy = policy;
+        Files.createDirectories(dir);
+        // Finish compressions that were interrupted by a shutdown
+        for (Path segment : segments()) {
+            if (segment.toString().endsWith(".txt")) {
+                compressor.execute(() -> compress(segment));
+            }
+        }
+        compressor.execute(this::enforceRetention);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Called on the archiver thread with a time whenever retention deletes
+     * archives: every line written up to that time is gone. Hears about
+     * deletions made before it was set too.
+     */
+    public void setRetentionListener(LongConsumer listener) {
+        this.retentionListener = listener;
+        try {
+            compressor.execute(() -> {
+                if (droppedUpTo > 0) {
+                    listener.accept(droppedUpTo);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Move the live file into the archive and compress it in the background.
+     * The caller has closed the file and reopens a fresh one afterwards.
+     */
+    public Path rotate(Path live) throws IOException {
+        String stamp = new SimpleDateFormat(STAMP_FORMAT).format(new Date());
+        Path target = dir.resolve(baseName + "." + stamp + ".txt");
+        for (int i = 1; Files.exists(target) || Files.exists(gzipped(target)); i++) {
+            target = dir.resolve(baseName + "." + stamp + "-" + i + ".txt");
+        }
+        Files.move(live, target, StandardCopyOption.ATOMIC_MOVE);
+        Path rotated = target;
+        compressor.execute(() -> compress(rotated));
+        return rotated;
+    }
+
+    /**
+     * Archived segments, oldest first
+     */
+    public List<Path> segments() {
+        List<Path> result = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(baseName + ".") && (name.endsWith(".txt") || name.endsWith(".txt.gz"));
+            }).forEach(result::add);
+        } catch (IOException e) {
+            return result;
+        }
+        result.sort(Comparator.comparing(this::stamp).thenComparingInt(this::suffix));
+        return result;
+    }
+
+    /**
+     * Rotation time of a segment ("yyyyMMdd-HHmmss-SSS" sorts by name)
+     */
+    private String stamp(Path segment) {
+        String name = stampAndSuffix(segment);
+        return name.substring(0, Math.min(STAMP_LENGTH, name.length()));
+    }
+
+    /**
+     * Time a segment was rotated, from its name (its file time if the name doesn't parse)
+     */
+    private long rotatedAt(Path segment) throws IOException {
+        try {
+            return new SimpleDateFormat(STAMP_FORMAT).parse(stamp(segment)).getTime();
+        } catch (ParseException e) {
+            return Files.getLastModifiedTime(segment).toMillis();
+        }
+    }
+
+    /**
+     * Counter added to a segment rotated in the same millisecond as another, 0 for none
+     */
+    private int suffix(Path segment) {
+        String name = stampAndSuffix(segment);
+        try {
+            return name.length() > STAMP_LENGTH + 1 ? Integer.parseInt(name.substring(STAMP_LENGTH + 1)) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String stampAndSuffix(Path segment) {
+        String name = segment.getFileName().toString();
+        return name.substring(baseName.length() + 1, name.indexOf(".txt", baseName.length()));
+    }
+
+    /**
+     * Every line of every archived segment, oldest first, read lazily.
+     * Close the stream when done.
+     */
+    public Stream<String> lines() {
+        return segments().stream().flatMap(this::lines);
+    }
+
+    private Stream<String> lines(Path segment) {
+        try {
+            InputStream in;
+            try {
+                in = Files.newInputStream(segment);
+            } catch (NoSuchFileException e) {
+                // Compressed (or deleted by retention) since it was listed
+                segment = gzipped(segment);
+                in = Files.newInputStream(segment);
+            }
+            if (segment.toString().endsWith(".gz")) {
+                in = new GZIPInputStream(in, 64 * 1024);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+            return reader.lines().onClose(() -> {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            });
+        } catch (IOException e) {
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Compressed size of all archives in bytes
+     */
+    public long totalBytes() {
+        long total = 0;
+        for (Path segment : segments()) {
+            try {
+                total += Files.size(segment);
+            } catch (IOException e) {
+                // Removed meanwhile
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Delete every archive (used when the history is cleared)
+     */
+    public void deleteAll() {
+        awaitPending();
+        for (Path segment : segments()) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                System.err.println("[History Error] Cannot delete " + segment + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Wait for compressions already started
+     */
+    public void awaitPending() {
+        Future<?> done = compressor.submit(() -> { });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    public void close() {
+        compressor.shutdown();
+        try {
+            compressor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * gzip one rotated segment (via a temp file, so a crash never leaves a
+     * half-written .gz), then apply retention
+     */
+    private void compress(Path segment) {
+        Path target = gzipped(segment);
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+        try {
+            try (InputStream in = Files.newInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(segment);
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot compress " + segment + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        }
+        enforceRetention();
+    }
+
+    /**
+     * Delete the oldest archives while over the size limit or older than the age limit
+     */
+    private void enforceRetention() {
+        List<Path> segments = segments();
+        long total = totalBytes();
+        long now = System.currentTimeMillis();
+        long dropped = 0;
+        for (Path segment : segments) {
+            try {
+                boolean tooOld = policy.maxAgeMillis > 0
+                        && now - Files.getLastModifiedTime(segment).toMillis() > policy.maxAgeMillis;
+                boolean overSize = policy.maxBytes > 0 && total > policy.maxBytes;
+                if (!tooOld && !overSize) {
+                    break;
+                }
+                long size = Files.size(segment);
+                long rotated = rotatedAt(segment);
+                Files.deleteIfExists(segment);
+                total -= size;
+                dropped = Math.max(dropped, rotated);
+            } catch (IOException e) {
+                // Removed meanwhile
+            }
+        }
+        LongConsumer listener = retentionListener;
+        if (dropped > droppedUpTo) {
+            droppedUpTo = dropped;
+            if (listener != null) {
+                listener.accept(dropped);
+            }
+        }
+    }
+
+    private static Path gzipped(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + ".gz");
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded, lock-free ring buffer holding the most recent history lines.
+ *
+ * Writers claim a sequence number with one atomic increment and publish the
+ * line into slot (seq % capacity), overwriting the oldest entry - O(1), no
+ * array shifting and no lock. Readers copy the slots without blocking
+ * writers: each slot remembers its sequence number, so entries that were
+ * overwritten while reading are skipped and the snapshot stops at the first
+ * slot a writer has claimed but not published yet.
+ */
+public class HistoryCache {
+    private static class Slot {
+        final long seq;
+        final String text;
+
+        Slot(long seq, String text) {
+            this.seq = seq;
+            this.text = text;
+        }
+    }
+
+    private final int capacity;
+    private final AtomicReferenceArray<Slot> slots;
+    private final AtomicLong next = new AtomicLong();
+    // Everything below this sequence number was removed by clear()
+    private volatile long clearedBefore;
+
+    public HistoryCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    public void add(String text) {
+        long seq = next.getAndIncrement();
+        int index = (int) (seq % capacity);
+        Slot slot = new Slot(seq, text);
+        // A writer that stalled after claiming its seq must not overwrite a newer line
+        Slot current;
+        do {
+            current = slots.get(index);
+            if (current != null && current.seq > seq) {
+                return;
+            }
+        } while (!slots.compareAndSet(index, current, slot));
+    }
+
+    /**
+     * Copy of the cached lines, oldest first
+     */
+    public List<String> snapshot() {
+        return last(capacity);
+    }
+
+    /**
+     * Copy of the newest count cached lines, oldest first
+     */
+    public List<String> last(int count) {
+        long end = next.get();
+        long start = Math.max(clearedBefore, end - Math.min(count, capacity));
+        List<String> result = new ArrayList<>((int) Math.max(0, end - start));
+        for (long seq = start; seq < end; seq++) {
+            Slot slot = slots.get((int) (seq % capacity));
+            if (slot == null || slot.seq < seq) {
+                // Claimed but not published yet: stop here to keep the order intact
+                break;
+            }
+            if (slot.seq == seq) {
+                result.add(slot.text);
+            }
+            // slot.seq > seq: already overwritten by a newer line, skip it
+        }
+        return result;
+    }
+
+    public int size() {
+        long end = next.get();
+        return (int) Math.min(capacity, end - Math.min(end, clearedBefore));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        clearedBefore = next.get();
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads an existing chat_history text file back at startup.
+ *
+ * tail() reads only the end of the file (backwards, block by block) to get
+ * the last K lines - cost depends on K, not on the file size.
+ * forEachChunk() parses the whole file in parallel: the file is split into
+ * byte ranges aligned to line ends, each range is decoded by a fork-join
+ * task, and the results are handed to the consumer in file order one window
+ * at a time, so memory stays bounded for multi-gigabyte files.
+ */
+public class HistoryLoader {
+    private static final int TAIL_BLOCK = 64 * 1024;
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Receives parsed lines in file order; return false to stop
+     */
+    public interface ChunkConsumer {
+        boolean accept(List<String> lines) throws IOException;
+    }
+
+    private final Path path;
+
+    public HistoryLoader(String filename) {
+        this.path = Paths.get(filename);
+    }
+
+    /**
+     * Header and "HISTORY CLEARED" banner lines, which are not messages
+     */
+    public static boolean isMessageLine(String line) {
+        return !line.isEmpty()
+            && !line.startsWith("========")
+            && !line.startsWith("P2P CHAT HISTORY")
+            && !line.startsWith("Created: ")
+            && !line.startsWith("HISTORY CLEARED");
+    }
+
+    /**
+     * Last count message lines of the file, oldest first
+     */
+    public List<String> tail(int count) throws IOException {
+        if (count <= 0 || !Files.exists(path)) {
+            return new ArrayList<>();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = channel.size();
+            long start = end;
+            int newlines = 0;
+            // Walk back until we have passed count + 1 line breaks (or reached the start)
+            ByteBuffer block = ByteBuffer.allocate(TAIL_BLOCK);
+            while (start > 0 && newlines <= count) {
+                long from = Math.max(0, start - TAIL_BLOCK);
+                block.clear().limit((int) (start - from));
+                readFully(channel, block, from);
+                for (int i = block.limit() - 1; i >= 0; i--) {
+                    if (block.get(i) == '\n' && ++newlines > count + 1) {
+                        from += i + 1;
+                        break;
+                    }
+                }
+                start = from;
+            }
+            List<String> lines = parse(channel, start, end);
+            // Banner lines were counted too; drop extras from the front
+            return lines.size() > count ? new ArrayList<>(lines.subList(lines.size() - count, lines.size())) : lines;
+        }
+    }
+
+    /**
+     * Parse the message lines in the first upTo bytes of the file in parallel,
+     * delivering them to the consumer in order, one window of about
+     * parallelism * CHUNK_SIZE bytes at a time
+     * @return number of lines delivered
+     */
+    public long forEachChunk(long upTo, ChunkConsumer consumer) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        long window = (long) CHUNK_SIZE * Math.max(1, pool.getParallelism());
+        long delivered = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = Math.min(upTo, channel.size());
+            long pos = 0;
+            while (pos < size) {
+                long end = lineEnd(channel, Math.min(size, pos + window), size);
+                List<String> lines = pool.invoke(new ParseTask(channel, pos, end));
+                delivered += lines.size();
+                if (!consumer.accept(lines)) {
+                    break;
+                }
+                pos = end;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return delivered;
+    }
+
+    /**
+     * Splits its range in halves at line ends until it is small enough to parse directly
+     */
+    private static class ParseTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ParseTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<String> compute() {
+            try {
+                if (end - start <= CHUNK_SIZE) {
+                    return parse(channel, start, end);
+                }
+                long mid = lineEnd(channel, start + (end - start) / 2, end);
+                if (mid >= end) {
+                    return parse(channel, start, end);
+                }
+                ParseTask left = new ParseTask(channel, start, mid);
+                ParseTask right = new ParseTask(channel, mid, end);
+                right.fork();
+                List<String> result = left.compute();
+                result.addAll(right.join());
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Position just after the first '\n' at or after pos (or limit)
+     */
+    private static long lineEnd(FileChannel channel, long pos, long limit) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(8 * 1024);
+        while (pos < limit) {
+            block.clear().limit((int) Math.min(block.capacity(), limit - pos));
+            readFully(channel, block, pos);
+            for (int i = 0; i < block.limit(); i++) {
+                if (block.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += block.limit();
+        }
+        return limit;
+    }
+
+    /**
+     * Message lines in [start, end); the range must start at a line boundary
+     */
+    private static List<String> parse(FileChannel channel, long start, long end) throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        readFully(channel, ByteBuffer.wrap(bytes), start);
+        List<String> lines = new ArrayList<>();
+        int lineStart = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i == bytes.length || bytes[i] == '\n') {
+                int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                if (lineEnd > lineStart) {
+                    String line = new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                    if (isMessageLine(line)) {
+                        lines.add(line);
+                    }
+                }
+                lineStart = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos);
+            if (n < 0) {
+                throw new EOFException("History file shrank while reading");
+            }
+            pos += n;
+        }
+    }
+}
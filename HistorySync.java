@@ -0,0 +1,561 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Anti-entropy sync of gossip messages between two peers, so a node that was
+ * offline catches up on what the mesh said meanwhile.
+ *
+ * Every gossip message (sent or received) is kept in a MessageLog under
+ * chat_sync_<port>/, identified by a 64-bit hash of its origin, message id
+ * and timestamp. The hashes are split into BUCKETS buckets by their top bits,
+ * and each bucket has a digest: the XOR of its hashes, updated on every add.
+ *
+ * One round, started by syncWith() (on /connect, or when a peer reconnects):
+ *   A -> B  SYNC_SUMMARY  all bucket digests (8 KB, independent of history size)
+ *   B -> A  SYNC_IDS      B's hashes, only for the buckets whose digest differs
+ *   A -> B  SYNC_REQUEST  hashes B has and A is missing
+ *   A -> B  SYNC_DATA     messages A has and B is missing (pushed in bulk)
+ *   B -> A  SYNC_DATA     the requested messages
+ * Matching buckets cost nothing beyond the summary, so the traffic grows with
+ * the number of differing messages (times the bucket size), not the history.
+ *
+ * Only messages inside the sync window are kept, indexed and synced: newer
+ * than maxDays, and at most maxMessages of them. The window starts at a
+ * cutoff time rounded to the hour, so peers with the same settings usually
+ * have the same window and matching digests. A round compares only messages
+ * after the later of the two cutoffs. Log segments that only hold messages
+ * from before the cutoff are deleted.
+ *
+ * Payloads (big endian, strings as short length + UTF-8):
+ *   SYNC_SUMMARY  long count, long cutoff, BUCKETS x long digest
+ *   SYNC_IDS      long cutoff used, then repeated: short bucket, int n, n x long hash
+ *   SYNC_REQUEST  repeated: long hash
+ *   SYNC_DATA     repeated: long timestamp, long messageId, origin, int length, UTF-8 text
+ *
+ * Settings: -Dp2p.sync.maxDays (7, 0 = no age limit), -Dp2p.sync.maxMessages (1000000)
+ */
+public class HistorySync implements Closeable {
+    public static final int BUCKETS = 1024;
+    public static final byte[] FRAME_TYPES = {
+        Frame.SYNC_SUMMARY, Frame.SYNC_IDS, Frame.SYNC_REQUEST, Frame.SYNC_DATA
+    };
+    private static final int MAX_PAYLOAD = 256 * 1024;
+    private static final long RESYNC_MILLIS = 5_000;
+    private static final long CUTOFF_STEP = TimeUnit.HOURS.toMillis(1);
+
+    private static final LongAdder rounds = Metrics.counter("sync.rounds");
+    private static final LongAdder pulled = Metrics.counter("sync.pulled");
+    private static final LongAdder pushed = Metrics.counter("sync.pushed");
+    private static final LongAdder expired = Metrics.counter("sync.expired");
+
+    private final MessageLog log;
+    private final MessageHistory history;
+    private final long maxAgeMillis;
+    private final long maxMessages;
+    // Per bucket: sorted hashes, and the log sequence number and timestamp of each
+    private final long[][] hashes = new long[BUCKETS][];
+    private final long[][] seqs = new long[BUCKETS][];
+    private final long[][] times = new long[BUCKETS][];
+    private final int[] sizes = new int[BUCKETS];
+    private final long[] digests = new long[BUCKETS];
+    private long count;
+    // Start of the sync window: older messages are dropped
+    private long cutoff;
+    // All protocol work runs here, off the receiver's I/O threads
+    private final ScheduledExecutorService worker =
+        Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("history-sync"));
+    private final ConcurrentHashMap<String, Long> lastSync = new ConcurrentHashMap<>();
+
+    public HistorySync(int port, MessageHistory history) throws IOException {
+        this.log = new MessageLog("chat_sync_" + port);
+        this.history = history;
+        this.maxAgeMillis = TimeUnit.DAYS.toMillis(Long.getLong("p2p.sync.maxDays", 7));
+        this.maxMessages = Math.max(1, Long.getLong("p2p.sync.maxMessages", 1_000_000));
+        for (int i = 0; i < BUCKETS; i++) {
+            hashes[i] = new long[8];
+            seqs[i] = new long[8];
+            times[i] = new long[8];
+        }
+        this.cutoff = ageCutoff(System.currentTimeMillis());
+        long seq = log.firstSeq();
+        while (seq < log.size()) {
+            List<MessageLog.Entry> chunk = log.read(seq, 4096);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            for (MessageLog.Entry entry : chunk) {
+                Message message = Message.fromLog(entry);
+                if (message != null && entry.timestamp >= cutoff) {
+                    insert(message.hash(), entry.seq, entry.timestamp);
+                }
+            }
+            seq += chunk.size();
+        }
+        prune();
+        worker.scheduleWithFixedDelay(this::prune, 1, 1, TimeUnit.MINUTES);
+        Metrics.gauge("sync.messages", this::size);
+    }
+
+    /**
+     * One synced (gossip) message
+     */
+    static class Message {
+        final String origin;
+        final long messageId;
+        final long timestamp;
+        final String text;
+
+        Message(String origin, long messageId, long timestamp, String text) {
+            this.origin = origin;
+            this.messageId = messageId;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+
+        long hash() {
+            return HistorySync.hash(origin, messageId, timestamp);
+        }
+
+        /**
+         * Log text: "<messageId> <origin length> <origin><text>"
+         */
+        String toLog() {
+            return messageId + " " + origin.length() + " " + origin + text;
+        }
+
+        static Message fromLog(MessageLog.Entry entry) {
+            try {
+                String s = entry.text;
+                int first = s.indexOf(' ');
+                int second = s.indexOf(' ', first + 1);
+                long messageId = Long.parseLong(s.substring(0, first));
+                int originEnd = second + 1 + Integer.parseInt(s.substring(first + 1, second));
+                return new Message(s.substring(second + 1, originEnd), messageId, entry.timestamp,
+                                   s.substring(originEnd));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Store a gossip message seen on this node
+     * @return false if it was already stored or is older than the sync window
+     */
+    public boolean record(String origin, long messageId, long timestamp, String text) {
+        Message message = new Message(origin, messageId, timestamp, text);
+        long hash = message.hash();
+        synchronized (this) {
+            if (timestamp < cutoff || indexOf(hash) >= 0) {
+                return false;
+            }
+            try {
+                insert(hash, log.append(timestamp, message.toLog()), timestamp);
+            } catch (IOException e) {
+                // Not indexed, so a later sync can still fetch it
+                System.err.println("[Sync Error] Cannot store message: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Move the window start forward (by age, then by count), drop older
+     * messages from the index and digests, and delete log segments holding
+     * only such messages
+     */
+    synchronized void prune() {
+        long newCutoff = Math.max(cutoff, ageCutoff(System.currentTimeMillis()));
+        if (count > maxMessages) {
+            long[] all = new long[(int) count];
+            int n = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                System.arraycopy(times[bucket], 0, all, n, sizes[bucket]);
+                n += sizes[bucket];
+            }
+            Arrays.sort(all);
+            // Just past the newest message that has to go, rounded up to the step
+            long last = all[(int) (count - maxMessages) - 1];
+            newCutoff = Math.max(newCutoff, (Math.floorDiv(last, CUTOFF_STEP) + 1) * CUTOFF_STEP);
+        }
+        long removed = 0;
+        long oldestSeq = log.size();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            int kept = 0;
+            for (int i = 0; i < sizes[bucket]; i++) {
+                if (times[bucket][i] < newCutoff) {
+                    digests[bucket] ^= hashes[bucket][i];
+                    removed++;
+                    continue;
+                }
+                hashes[bucket][kept] = hashes[bucket][i];
+                seqs[bucket][kept] = seqs[bucket][i];
+                times[bucket][kept] = times[bucket][i];
+                oldestSeq = Math.min(oldestSeq, seqs[bucket][i]);
+                kept++;
+            }
+            sizes[bucket] = kept;
+        }
+        cutoff = newCutoff;
+        count -= removed;
+        expired.add(removed);
+        try {
+            log.deleteBefore(oldestSeq);
+        } catch (IOException e) {
+            System.err.println("[Sync Error] Cannot delete old messages: " + e.getMessage());
+        }
+    }
+
+    private long ageCutoff(long now) {
+        return maxAgeMillis > 0 ? Math.floorDiv(now - maxAgeMillis, CUTOFF_STEP) * CUTOFF_STEP : 0;
+    }
+
+    /**
+     * Start a sync round with the peer (skipped if one ran within the last few seconds)
+     */
+    public void syncWith(Peer peer) {
+        run(() -> startRound(peer, false));
+    }
+
+    /**
+     * Start a sync round now, even if one ran recently (/sync)
+     */
+    public void syncNow(Peer peer) {
+        run(() -> startRound(peer, true));
+    }
+
+    /**
+     * Sync with a peer that just reconnected to us, after a short delay so a
+     * round it starts itself (on /connect) takes precedence
+     */
+    public void syncLater(Peer peer) {
+        try {
+            worker.schedule(() -> startRound(peer, false), 1, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Handler for all SYNC_* frames (register with the Dispatcher)
+     */
+    public void onFrame(Frame frame, InetSocketAddress remote) {
+        Peer peer = Dispatcher.replyPeer(frame, remote);
+        if (peer == null) {
+            return;
+        }
+        run(() -> {
+            try {
+                ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+                switch (frame.getType()) {
+                    case Frame.SYNC_SUMMARY:
+                        onSummary(peer, payload);
+                        break;
+                    case Frame.SYNC_IDS:
+                        onIds(peer, payload);
+                        break;
+                    case Frame.SYNC_REQUEST:
+                        onRequest(peer, payload);
+                        break;
+                    case Frame.SYNC_DATA:
+                        onData(peer, payload);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                System.err.println("[Sync Error] Bad sync frame from " + peer.getId());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        worker.shutdown();
+        try {
+            worker.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    private void run(Runnable task) {
+        try {
+            worker.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    private void startRound(Peer peer, boolean force) {
+        Long last = lastSync.get(peer.getId());
+        if (!force && last != null && System.currentTimeMillis() - last < RESYNC_MILLIS) {
+            return;
+        }
+        lastSync.put(peer.getId(), System.currentTimeMillis());
+        rounds.increment();
+        ByteBuffer payload = ByteBuffer.allocate(8 + 8 + BUCKETS * 8);
+        synchronized (this) {
+            payload.putLong(count).putLong(cutoff);
+            for (long digest : digests) {
+                payload.putLong(digest);
+            }
+        }
+        Sender.sendFrame(peer, frame(Frame.SYNC_SUMMARY, payload));
+    }
+
+    /**
+     * B: answer with our hashes for every bucket whose digest differs,
+     * leaving out messages from before either side's window
+     */
+    private void onSummary(Peer peer, ByteBuffer in) {
+        lastSync.put(peer.getId(), System.currentTimeMillis());
+        in.getLong();
+        long since;
+        synchronized (this) {
+            since = Math.max(cutoff, in.getLong());
+        }
+        List<Frame> frames = new ArrayList<>();
+        ByteBuffer out = newIdsBuffer(MAX_PAYLOAD, since);
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            long theirs = in.getLong();
+            long[] mine;
+            synchronized (this) {
+                if (digests[bucket] == theirs) {
+                    continue;
+                }
+                mine = new long[sizes[bucket]];
+                int n = 0;
+                for (int i = 0; i < sizes[bucket]; i++) {
+                    if (times[bucket][i] >= since) {
+                        mine[n++] = hashes[bucket][i];
+                    }
+                }
+                mine = Arrays.copyOf(mine, n);
+            }
+            int needed = 2 + 4 + mine.length * 8;
+            if (out.position() > 8 && out.remaining() < needed) {
+                frames.add(frame(Frame.SYNC_IDS, out));
+                out = newIdsBuffer(Math.max(MAX_PAYLOAD, needed), since);
+            } else if (out.remaining() < needed) {
+                out = newIdsBuffer(needed, since);
+            }
+            out.putShort((short) bucket).putInt(mine.length);
+            for (long hash : mine) {
+                out.putLong(hash);
+            }
+        }
+        if (out.position() > 8) {
+            frames.add(frame(Frame.SYNC_IDS, out));
+        }
+        if (!frames.isEmpty()) {
+            Sender.sendBatch(peer, frames);
+        }
+    }
+
+    private static ByteBuffer newIdsBuffer(int size, long since) {
+        return ByteBuffer.allocate(8 + size).putLong(since);
+    }
+
+    /**
+     * A: request what we are missing, push what the peer is missing
+     */
+    private void onIds(Peer peer, ByteBuffer in) {
+        List<Long> missing = new ArrayList<>();
+        List<Long> extra = new ArrayList<>();
+        long since = in.getLong();
+        while (in.hasRemaining()) {
+            int bucket = in.getShort() & 0xFFFF;
+            int n = in.getInt();
+            if (bucket >= BUCKETS || n < 0 || n > in.remaining() / 8) {
+                throw new IllegalArgumentException("bad bucket");
+            }
+            long[] theirs = new long[n];
+            for (int i = 0; i < n; i++) {
+                theirs[i] = in.getLong();
+            }
+            Arrays.sort(theirs);
+            synchronized (this) {
+                for (long hash : theirs) {
+                    if (indexOf(hash) < 0) {
+                        missing.add(hash);
+                    }
+                }
+                for (int i = 0; i < sizes[bucket]; i++) {
+                    if (times[bucket][i] >= since && Arrays.binarySearch(theirs, hashes[bucket][i]) < 0) {
+                        extra.add(seqs[bucket][i]);
+                    }
+                }
+            }
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        ByteBuffer out = ByteBuffer.allocate(Math.min(MAX_PAYLOAD, missing.size() * 8));
+        for (long hash : missing) {
+            if (!out.hasRemaining()) {
+                frames.add(frame(Frame.SYNC_REQUEST, out));
+                out = ByteBuffer.allocate(MAX_PAYLOAD);
+            }
+            out.putLong(hash);
+        }
+        if (out.position() > 0) {
+            frames.add(frame(Frame.SYNC_REQUEST, out));
+        }
+        frames.addAll(dataFrames(extra));
+        if (!frames.isEmpty()) {
+            Sender.sendBatch(peer, frames);
+        }
+        pushed.add(extra.size());
+    }
+
+    /**
+     * B: send the requested messages
+     */
+    private void onRequest(Peer peer, ByteBuffer in) {
+        List<Long> wanted = new ArrayList<>();
+        synchronized (this) {
+            while (in.hasRemaining()) {
+                int i = indexOf(in.getLong());
+                if (i >= 0) {
+                    wanted.add(seqAt(i));
+                }
+            }
+        }
+        List<Frame> frames = dataFrames(wanted);
+        if (!frames.isEmpty()) {
+            Sender.sendBatch(peer, frames);
+        }
+        pushed.add(wanted.size());
+    }
+
+    /**
+     * Store messages we did not have and add them to the chat history
+     */
+    private void onData(Peer peer, ByteBuffer in) {
+        int added = 0;
+        while (in.hasRemaining()) {
+            long timestamp = in.getLong();
+            long messageId = in.getLong();
+            String origin = getString(in, in.getShort() & 0xFFFF);
+            String text = getString(in, in.getInt());
+            if (record(origin, messageId, timestamp, text)) {
+                history.saveMessage(origin + " (sync)", text, "received");
+                added++;
+            }
+        }
+        if (added > 0) {
+            pulled.add(added);
+            System.out.println("\n🔄 Synced " + added + " missed message" + (added == 1 ? "" : "s") +
+                               " from " + peer.getId());
+        }
+    }
+
+    private List<Frame> dataFrames(List<Long> logSeqs) {
+        List<Frame> frames = new ArrayList<>();
+        ByteBuffer out = ByteBuffer.allocate(MAX_PAYLOAD);
+        for (long seq : logSeqs) {
+            MessageLog.Entry entry = log.get(seq);
+            Message message = entry == null ? null : Message.fromLog(entry);
+            if (message == null) {
+                continue;
+            }
+            byte[] origin = message.origin.getBytes(StandardCharsets.UTF_8);
+            byte[] text = message.text.getBytes(StandardCharsets.UTF_8);
+            int needed = 8 + 8 + 2 + origin.length + 4 + text.length;
+            if (out.remaining() < needed) {
+                if (out.position() > 0) {
+                    frames.add(frame(Frame.SYNC_DATA, out));
+                }
+                out = ByteBuffer.allocate(Math.max(MAX_PAYLOAD, needed));
+            }
+            out.putLong(message.timestamp).putLong(message.messageId)
+               .putShort((short) origin.length).put(origin)
+               .putInt(text.length).put(text);
+        }
+        if (out.position() > 0) {
+            frames.add(frame(Frame.SYNC_DATA, out));
+        }
+        return frames;
+    }
+
+    private static Frame frame(byte type, ByteBuffer payload) {
+        byte[] bytes = Arrays.copyOf(payload.array(), payload.position());
+        return new Frame(type, (byte) 0, Sender.nextMessageId(), System.currentTimeMillis(),
+                         Sender.getLocalId(), bytes);
+    }
+
+    private static String getString(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("bad length");
+        }
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static long hash(String origin, long messageId, long timestamp) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < origin.length(); i++) {
+            h = (h ^ origin.charAt(i)) * 0x100000001b3L;
+        }
+        h = mix(h ^ messageId);
+        return mix(h ^ timestamp);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int bucket(long hash) {
+        return (int) (hash >>> 54);
+    }
+
+    // Index helpers, called with the lock held. A position packs bucket and slot.
+
+    private int indexOf(long hash) {
+        int bucket = bucket(hash);
+        int slot = Arrays.binarySearch(hashes[bucket], 0, sizes[bucket], hash);
+        return slot < 0 ? -1 : bucket << 20 | slot;
+    }
+
+    private long seqAt(int position) {
+        return seqs[position >>> 20][position & 0xFFFFF];
+    }
+
+    private void insert(long hash, long seq, long timestamp) {
+        int bucket = bucket(hash);
+        int size = sizes[bucket];
+        int slot = Arrays.binarySearch(hashes[bucket], 0, size, hash);
+        if (slot >= 0) {
+            return;
+        }
+        slot = -slot - 1;
+        if (size == hashes[bucket].length) {
+            hashes[bucket] = Arrays.copyOf(hashes[bucket], size * 2);
+            seqs[bucket] = Arrays.copyOf(seqs[bucket], size * 2);
+            times[bucket] = Arrays.copyOf(times[bucket], size * 2);
+        }
+        System.arraycopy(hashes[bucket], slot, hashes[bucket], slot + 1, size - slot);
+        System.arraycopy(seqs[bucket], slot, seqs[bucket], slot + 1, size - slot);
+        System.arraycopy(times[bucket], slot, times[bucket], slot + 1, size - slot);
+        hashes[bucket][slot] = hash;
+        seqs[bucket][slot] = seq;
+        times[bucket][slot] = timestamp;
+        sizes[bucket] = size + 1;
+        digests[bucket] ^= hash;
+        count++;
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous group-commit appender for the chat history file.
+ * Callers only add a line to a lock-free queue; one background thread
+ * drains the queue in batches and writes them through a single open
+ * FileChannel according to the FlushPolicy.
+ * With a HistoryArchive, the file is rotated into the archive once it
+ * reaches the archive's size or age limit, and a new one is started.
+ */
+public class HistoryWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * When buffered lines are written to the file:
+     * after everyMessages lines or everyMillis ms, whichever comes first.
+     * With fsync, every write is also forced to disk.
+     */
+    public static class FlushPolicy {
+        final int everyMessages;
+        final long everyMillis;
+        final boolean fsync;
+
+        public FlushPolicy(int everyMessages, long everyMillis, boolean fsync) {
+            this.everyMessages = Math.max(1, everyMessages);
+            this.everyMillis = Math.max(0, everyMillis);
+            this.fsync = fsync;
+        }
+
+        /**
+         * Read from -Dp2p.history.flushEvery, -Dp2p.history.flushMillis, -Dp2p.history.fsync
+         * (defaults: 64 messages, 50 ms, no fsync)
+         */
+        public static FlushPolicy fromSystemProperties() {
+            return new FlushPolicy(
+                Integer.getInteger("p2p.history.flushEvery", 64),
+                Long.getLong("p2p.history.flushMillis", 50),
+                Boolean.getBoolean("p2p.history.fsync")
+            );
+        }
+
+        @Override
+        public String toString() {
+            return "every " + everyMessages + " msgs / " + everyMillis + " ms" + (fsync ? ", fsync" : "");
+        }
+    }
+
+    /**
+     * Control entry processed in order with the lines around it
+     */
+    private static class Barrier {
+        final String truncateWith;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Barrier(String truncateWith) {
+            this.truncateWith = truncateWith;
+        }
+    }
+
+    private final Path path;
+    private final FlushPolicy policy;
+    private final HistoryArchive archive;
+    private final Supplier<String> header;
+    private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private final Thread thread;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private volatile boolean closed;
+    private FileChannel channel;
+    private int unflushed;
+    private long firstUnflushedAt;
+    private long fileSize;
+    private long fileStartedAt;
+    private boolean hasMessages;
+
+    public HistoryWriter(String filename, FlushPolicy policy) throws IOException {
+        this(filename, policy, null, null);
+    }
+
+    /**
+     * @param archive Where full files are rotated to, or null to never rotate
+     * @param header Text written at the start of each new file after a rotation
+     */
+    public HistoryWriter(String filename, FlushPolicy policy, HistoryArchive archive,
+                         Supplier<String> header) throws IOException {
+        this.path = Paths.get(filename);
+        this.policy = policy;
+        this.archive = archive;
+        this.header = header;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fileSize = channel.size();
+        this.fileStartedAt = startedAt(path);
+        this.hasMessages = fileSize > 0;
+        this.thread = new Thread(this::runLoop, "history-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Queue one line (without trailing newline) for writing. Never blocks.
+     */
+    public void append(String line) {
+        if (closed) {
+            return;
+        }
+        queue.add(line);
+        if (parked.get()) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Wait until every line queued so far has been written
+     */
+    public void flush() {
+        await(new Barrier(null));
+    }
+
+    /**
+     * Wait for queued lines, then truncate the file and write the given text
+     */
+    public void truncate(String header) {
+        await(new Barrier(header));
+    }
+
+    private void await(Barrier barrier) {
+        if (closed) {
+            return;
+        }
+        queue.add(barrier);
+        LockSupport.unpark(thread);
+        try {
+            // The writer may have stopped after we checked closed
+            while (!barrier.done.await(100, TimeUnit.MILLISECONDS) && thread.isAlive()) {
+                LockSupport.unpark(thread);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write everything still queued, then close the file
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public FlushPolicy getPolicy() {
+        return policy;
+    }
+
+    private void runLoop() {
+        while (true) {
+            boolean stopping = closed;
+            drainQueue();
+
+            if (stopping && queue.isEmpty()) {
+                writeBuffered();
+                break;
+            }
+
+            if (unflushed > 0 && System.currentTimeMillis() - firstUnflushedAt >= policy.everyMillis) {
+                writeBuffered();
+            }
+
+            if (queue.isEmpty()) {
+                parked.set(true);
+                if (queue.isEmpty() && !closed) {
+                    if (unflushed > 0) {
+                        long waitMs = Math.max(1, policy.everyMillis - (System.currentTimeMillis() - firstUnflushedAt));
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(waitMs));
+                    } else {
+                        LockSupport.park();
+                    }
+                }
+                parked.set(false);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private void drainQueue() {
+        Object entry;
+        while ((entry = queue.poll()) != null) {
+            if (entry instanceof Barrier) {
+                Barrier barrier = (Barrier) entry;
+                writeBuffered();
+                if (barrier.truncateWith != null) {
+                    rewrite(barrier.truncateWith);
+                }
+                barrier.done.countDown();
+                continue;
+            }
+
+            byte[] bytes = ((String) entry + "\n").getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > buffer.remaining()) {
+                writeBuffered();
+            }
+            if (unflushed == 0) {
+                firstUnflushedAt = System.currentTimeMillis();
+            }
+            if (bytes.length > buffer.capacity()) {
+                rotateIfDue(bytes.length);
+                write(ByteBuffer.wrap(bytes));
+            } else {
+                buffer.put(bytes);
+                unflushed++;
+            }
+            if (unflushed >= policy.everyMessages) {
+                writeBuffered();
+            }
+        }
+    }
+
+    private void writeBuffered() {
+        if (buffer.position() == 0) {
+            unflushed = 0;
+            return;
+        }
+        rotateIfDue(buffer.position());
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+        unflushed = 0;
+    }
+
+    private void write(ByteBuffer data) {
+        try {
+            while (data.hasRemaining()) {
+                fileSize += channel.write(data);
+            }
+            if (policy.fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot save message: " + e.getMessage());
+        }
+    }
+
+    private void rewrite(String header) {
+        try {
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+            fileSize = 0;
+            write(ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8)));
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileStartedAt = System.currentTimeMillis();
+            hasMessages = false;
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot clear history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Before writing incoming bytes: move the current file into the archive if
+     * it would pass the size limit or is older than the age limit. A file
+     * holding only its header is never rotated.
+     */
+    private void rotateIfDue(int incoming) {
+        boolean due = archive != null && hasMessages
+                && archive.getPolicy().shouldRotate(fileSize + incoming, fileStartedAt);
+        hasMessages = true;
+        if (!due) {
+            return;
+        }
+        try {
+            if (policy.fsync) {
+                channel.force(false);
+            }
+            channel.close();
+            Path rotated = archive.rotate(path);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                       StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = 0;
+            fileStartedAt = System.currentTimeMillis();
+            if (header != null) {
+                write(ByteBuffer.wrap(header.get().getBytes(StandardCharsets.UTF_8)));
+            }
+            System.out.println("[History] Rotated " + path + " to " + rotated);
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot rotate history: " + e.getMessage());
+            try {
+                if (!channel.isOpen()) {
+                    channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    fileSize = channel.size();
+                }
+            } catch (IOException reopen) {
+                System.err.println("[History Error] Cannot open file: " + reopen.getMessage());
+            }
+            // Don't retry on every write; try again after another full period
+            fileStartedAt = System.currentTimeMillis();
+        }
+    }
+
+    private static long startedAt(Path path) {
+        try {
+            return Files.readAttributes(path, java.nio.file.attribute.BasicFileAttributes.class)
+                        .creationTime().toMillis();
+        } catch (IOException e) {
+            return System.currentTimeMillis();
+        }
+    }
+}
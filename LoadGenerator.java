@@ -0,0 +1,361 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Headless load generator, used by "java Node --port ..." (see usage()).
+ *
+ * Open loop: messages are scheduled at a fixed rate and sent without waiting
+ * for earlier ones; send latency is measured from the scheduled time, so a
+ * stall shows up as latency instead of silently lowering the rate.
+ * Closed loop: a number of workers each send the next message as soon as the
+ * previous write finished.
+ *
+ * Every generated message starts with "LG <System.nanoTime()>". The
+ * receiving node computes the one-way latency from it, which is valid
+ * between processes on the same Linux machine (shared monotonic clock).
+ */
+public class LoadGenerator {
+    static final String PREFIX = "LG ";
+
+    /**
+     * Command-line options
+     */
+    public static class Options {
+        String name = "load";
+        int port = -1;
+        List<String> peers = new ArrayList<>();
+        double rate = 1000;
+        int durationSeconds = 10;
+        int warmupSeconds = 2;
+        int lingerSeconds = 3;
+        int waitSeconds = 30;
+        String size = "64";
+        boolean closedLoop;
+        int concurrency = 4;
+
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--closed")) {
+                    options.closedLoop = true;
+                    continue;
+                }
+                if (arg.equals("--open")) {
+                    options.closedLoop = false;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                try {
+                    switch (arg) {
+                        case "--name": options.name = value; break;
+                        case "--port": options.port = Integer.parseInt(value); break;
+                        case "--peers": options.peers.addAll(Arrays.asList(value.split(","))); break;
+                        case "--rate": options.rate = Double.parseDouble(value); break;
+                        case "--duration": options.durationSeconds = Integer.parseInt(value); break;
+                        case "--warmup": options.warmupSeconds = Integer.parseInt(value); break;
+                        case "--linger": options.lingerSeconds = Integer.parseInt(value); break;
+                        case "--wait": options.waitSeconds = Integer.parseInt(value); break;
+                        case "--size": options.size = value; sizes(value); break;
+                        case "--concurrency": options.concurrency = Integer.parseInt(value); break;
+                        default: throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad value for " + arg + ": " + value);
+                }
+            }
+            if (options.port <= 0) {
+                throw new IllegalArgumentException("--port is required");
+            }
+            if (options.rate <= 0 || options.concurrency <= 0 || options.durationSeconds <= 0) {
+                throw new IllegalArgumentException("--rate, --concurrency and --duration must be positive");
+            }
+            return options;
+        }
+    }
+
+    public static void usage() {
+        System.out.println("Usage: java Node --port <port> [options]");
+        System.out.println("  --name <name>           node name (default load)");
+        System.out.println("  --peers ip:port,...     peers to connect to and send to (none = receive only)");
+        System.out.println("  --open | --closed       fixed-rate open loop (default) or closed loop");
+        System.out.println("  --rate <msg/s>          open loop: total messages per second (default 1000)");
+        System.out.println("  --concurrency <n>       closed loop: number of senders (default 4)");
+        System.out.println("  --size <spec>           message bytes: 64 | 32-512 (uniform) | exp:256 (exponential)");
+        System.out.println("  --duration <s>          measured seconds (default 10)");
+        System.out.println("  --warmup <s>            unmeasured seconds before that (default 2)");
+        System.out.println("  --linger <s>            keep receiving afterwards (default 3)");
+        System.out.println("  --wait <s>              wait this long for peers to come up (default 30)");
+    }
+
+    /**
+     * Message size generator from a --size spec
+     */
+    static IntSupplier sizes(String spec) {
+        if (spec.startsWith("exp:")) {
+            double mean = Double.parseDouble(spec.substring(4));
+            return () -> (int) Math.min(FrameCodec.MAX_FRAME_SIZE / 2,
+                    Math.max(PREFIX.length() + 20, -mean * Math.log(1 - ThreadLocalRandom.current().nextDouble())));
+        }
+        int dash = spec.indexOf('-');
+        if (dash > 0) {
+            int min = Integer.parseInt(spec.substring(0, dash));
+            int max = Integer.parseInt(spec.substring(dash + 1));
+            if (max < min) {
+                throw new NumberFormatException(spec);
+            }
+            return () -> ThreadLocalRandom.current().nextInt(min, max + 1);
+        }
+        int fixed = Integer.parseInt(spec);
+        return () -> fixed;
+    }
+
+    private static final String FILLER = filler(1 << 20);
+
+    private final Options options;
+    private final IntSupplier sizes;
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil = Long.MAX_VALUE;
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+        this.sizes = sizes(options.size);
+    }
+
+    /**
+     * MESSAGE handler for the node under load: counts generated messages
+     * and records their one-way latency, without printing or saving them
+     */
+    public void onMessage(Frame frame, InetSocketAddress remote) {
+        long now = System.nanoTime();
+        if (now < measureFrom || now > measureUntil) {
+            return;
+        }
+        byte[] payload = frame.getPayload();
+        received.increment();
+        bytesReceived.add(payload.length);
+        long sentAt = parseSentAt(payload);
+        if (sentAt != 0) {
+            endToEnd.record(now - sentAt);
+        }
+    }
+
+    /**
+     * Wait for the peers, generate load, linger, then print the summary
+     */
+    public void run(List<Peer> targets) {
+        List<Peer> ready = awaitPeers(targets);
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        // Receive-side window also covers messages still in flight from slower peers
+        measureUntil = end + TimeUnit.SECONDS.toNanos(options.lingerSeconds);
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("load-report"));
+        reporter.scheduleAtFixedRate(new Progress(), 1, 1, TimeUnit.SECONDS);
+
+        if (ready.isEmpty()) {
+            System.out.println("ℹ️ No peers - receiving only");
+        } else if (options.closedLoop) {
+            runClosedLoop(ready, end);
+        } else {
+            runOpenLoop(ready, end);
+        }
+
+        LockSupport.parkNanos(Math.max(0, measureUntil - System.nanoTime()));
+        reporter.shutdownNow();
+        printSummary(ready.size());
+    }
+
+    private List<Peer> awaitPeers(List<Peer> targets) {
+        List<Peer> ready = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.waitSeconds);
+        for (Peer peer : targets) {
+            while (true) {
+                try {
+                    // Opens (and pools) the connection without sending anything
+                    Sender.getPool().send(peer, ByteBuffer.allocate(0));
+                    ready.add(peer);
+                    break;
+                } catch (IOException e) {
+                    if (System.nanoTime() > deadline) {
+                        System.out.println("❌ Peer " + peer.getId() + " not reachable, skipping it");
+                        break;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+                }
+            }
+        }
+        return ready;
+    }
+
+    private void runOpenLoop(List<Peer> targets, long end) {
+        long interval = (long) (1_000_000_000 / options.rate);
+        long next = System.nanoTime();
+        long count = 0;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            // Send everything that is due, so a late wakeup doesn't lower the rate
+            while (next <= now && next < end) {
+                Peer peer = targets.get((int) (count++ % targets.size()));
+                long scheduled = next;
+                String text = message(scheduled);
+                Sender.sendFrameAsync(peer, Frame.message(Sender.nextMessageId(), Sender.getLocalId(), text))
+                      .whenComplete((ok, error) -> recordSend(scheduled, text, ok != null && ok));
+                next += interval;
+            }
+        }
+    }
+
+    private void runClosedLoop(List<Peer> targets, long end) {
+        Thread[] workers = new Thread[options.concurrency];
+        for (int w = 0; w < workers.length; w++) {
+            int offset = w;
+            workers[w] = new Thread(() -> {
+                long count = offset;
+                while (System.nanoTime() < end) {
+                    Peer peer = targets.get((int) (count++ % targets.size()));
+                    long start = System.nanoTime();
+                    String text = message(start);
+                    recordSend(start, text, Sender.sendMessage(peer, text));
+                }
+            }, "load-" + w);
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void recordSend(long startNanos, String text, boolean ok) {
+        if (startNanos < measureFrom) {
+            return;
+        }
+        if (ok) {
+            sendLatency.recordSince(startNanos);
+            sent.increment();
+            bytesSent.add(text.length());
+        } else {
+            failed.increment();
+        }
+    }
+
+    /**
+     * "LG <nanos> " followed by filler up to the chosen size (ASCII, so chars = bytes)
+     */
+    private String message(long nanos) {
+        String head = PREFIX + nanos + " ";
+        int size = Math.max(head.length(), sizes.getAsInt());
+        int offset = ThreadLocalRandom.current().nextInt(FILLER.length() - Math.min(size, FILLER.length() - 1));
+        StringBuilder text = new StringBuilder(size).append(head);
+        while (text.length() < size) {
+            int take = Math.min(size - text.length(), FILLER.length() - offset);
+            text.append(FILLER, offset, offset + take);
+            offset = 0;
+        }
+        return text.toString();
+    }
+
+    private static long parseSentAt(byte[] payload) {
+        if (payload.length < PREFIX.length() + 1 || payload[0] != 'L' || payload[1] != 'G' || payload[2] != ' ') {
+            return 0;
+        }
+        long value = 0;
+        for (int i = PREFIX.length(); i < payload.length && payload[i] != ' '; i++) {
+            int digit = payload[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Random letters, so compression doesn't make the payload size meaningless
+     */
+    private static String filler(int length) {
+        Random random = new Random(42);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(26));
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * One line per second while the test runs
+     */
+    private class Progress implements Runnable {
+        private long lastSent;
+        private long lastReceived;
+        private int second;
+
+        @Override
+        public void run() {
+            long nowSent = sent.sum();
+            long nowReceived = received.sum();
+            second++;
+            System.out.printf("⏱ %3ds  sent %8d/s  failed %6d  received %8d/s  send p99 %s  e2e p99 %s%n",
+                              second, nowSent - lastSent, failed.sum(), nowReceived - lastReceived,
+                              millis(sendLatency.getPercentile(99)), millis(endToEnd.getPercentile(99)));
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+    }
+
+    private void printSummary(int peerCount) {
+        double seconds = options.durationSeconds;
+        System.out.println("\n" + "═".repeat(60));
+        System.out.println("📈 LOAD TEST SUMMARY (" + options.name + ":" + options.port + ")");
+        System.out.println("═".repeat(60));
+        System.out.println("Mode:         " + (options.closedLoop ? "closed loop, " + options.concurrency + " senders"
+                                                             : "open loop, " + (long) options.rate + " msg/s") +
+                           ", size " + options.size + " B, " + peerCount + " peers, " +
+                           options.durationSeconds + " s (+" + options.warmupSeconds + " s warmup)");
+        System.out.printf("Sent:         %d ok, %d failed, %.1f msg/s, %.2f MB/s%n", sent.sum(), failed.sum(),
+                          sent.sum() / seconds, bytesSent.sum() / seconds / (1024 * 1024));
+        printLatency("Send latency:", sendLatency);
+        System.out.printf("Received:     %d, %.1f msg/s, %.2f MB/s%n", received.sum(),
+                          received.sum() / seconds, bytesReceived.sum() / seconds / (1024 * 1024));
+        printLatency("End-to-end:", endToEnd);
+        System.out.println("═".repeat(60));
+    }
+
+    private static void printLatency(String label, LatencyHistogram histogram) {
+        System.out.printf("%-14sp50 %s  p90 %s  p99 %s  p99.9 %s  max %s  (n=%d)%n", label,
+                          millis(histogram.getPercentile(50)), millis(histogram.getPercentile(90)),
+                          millis(histogram.getPercentile(99)), millis(histogram.getPercentile(99.9)),
+                          millis(histogram.getMax()), histogram.getCount());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1_000_000.0);
+    }
+}
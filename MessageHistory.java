@@ -8,23 +8,101 @@
  */
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.stream.Stream;
 
 public class MessageHistory {
     // Private variables
     private String filename;
-    private List<String> messages;
+    private HistoryCache messages;
     private int maxHistorySize = 1000;
+    private HistoryWriter writer;
+    private HistoryArchive archive;
+    private MessageLog log;
+    private volatile SearchIndex index = new SearchIndex();
+    private final Object indexLock = new Object();
+    private int indexGeneration;
+    // Live messages saved while an old history file is imported into the log
+    private List<MessageLog.Entry> pendingImport;
+    // Small node state kept next to the history (e.g. joined rooms)
+    private final Path settingsFile;
+    private final Properties settings = new Properties();
+    
+    // Thread-safe, so one instance is shared instead of a new SimpleDateFormat per message
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    
+    // Metrics (see /stats)
+    private static final LatencyHistogram saveLatency = Metrics.histogram("history.save");
+    private static final LatencyHistogram searchLatency = Metrics.histogram("history.search");
     
     /**
      * Constructor for MessageHistory
      * @param port Port number of this node (used in filename)
      */
     public MessageHistory(int port) {
+        this(port, Integer.getInteger("p2p.history.cacheSize", 1000));
+    }
+    
+    /**
+     * Constructor with a custom in-memory cache size
+     * @param port Port number of this node (used in filename)
+     * @param cacheSize Number of recent messages kept in memory
+     */
+    public MessageHistory(int port, int cacheSize) {
         this.filename = "chat_history_" + port + ".txt";
-        this.messages = new ArrayList<>();
+        this.maxHistorySize = cacheSize;
+        this.messages = new HistoryCache(maxHistorySize);
+        this.settingsFile = Paths.get("chat_meta_" + port + ".properties");
         initializeHistoryFile();
+        loadSettings();
+        
+        // Recent messages from the end of the file - the rest is loaded in the background
+        HistoryLoader loader = new HistoryLoader(filename);
+        long existingSize = new File(filename).length();
+        try {
+            for (String line : loader.tail(maxHistorySize)) {
+                messages.add(line);
+            }
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot read history: " + e.getMessage());
+        }
+        
+        try {
+            this.archive = new HistoryArchive("chat_archive_" + port, "chat_history_" + port,
+                                              HistoryArchive.Policy.fromSystemProperties());
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot open archive: " + e.getMessage());
+        }
+        try {
+            this.writer = new HistoryWriter(filename, HistoryWriter.FlushPolicy.fromSystemProperties(),
+                                            archive, this::fileHeader);
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot open file: " + e.getMessage());
+        }
+        try {
+            this.log = new MessageLog("chat_log_" + port, Math.max(64 * 1024,
+                Integer.getInteger("p2p.history.logSegmentBytes", MessageLog.DEFAULT_SEGMENT_SIZE)));
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot open message log: " + e.getMessage());
+        }
+        if (archive != null && log != null) {
+            // The log holds the same messages as the archive: keep it within the same limits
+            archive.setRetentionListener(this::deleteLogUpTo);
+        }
+        if (log != null && log.size() == 0 && messages.size() > 0) {
+            // History file from before the message log existed
+            importHistoryFile(loader, existingSize);
+        } else {
+            rebuildSearchIndex();
+        }
         System.out.println("[History] System ready: " + filename);
     }
     
@@ -37,11 +115,7 @@ public class MessageHistory {
             if (!file.exists()) {
                 file.createNewFile();
                 try (FileWriter writer = new FileWriter(filename)) {
-                    writer.write("========================================\n");
-                    writer.write("P2P CHAT HISTORY - Node Port: " + 
-                                filename.replace("chat_history_", "").replace(".txt", "") + "\n");
-                    writer.write("Created: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "\n");
-                    writer.write("========================================\n");
+                    writer.write(fileHeader());
                 }
             }
         } catch (IOException e) {
@@ -49,6 +123,62 @@ public class MessageHistory {
         }
     }
     
+    /**
+     * Header at the start of each history file (also after a rotation)
+     */
+    private String fileHeader() {
+        return "========================================\n" +
+               "P2P CHAT HISTORY - Node Port: " + 
+               filename.replace("chat_history_", "").replace(".txt", "") + "\n" +
+               "Created: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "\n" +
+               "========================================\n";
+    }
+    
+    /**
+     * Read the stored settings, if any
+     */
+    private void loadSettings() {
+        if (!Files.exists(settingsFile)) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(settingsFile, StandardCharsets.UTF_8)) {
+            settings.load(reader);
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot read settings: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Get a stored setting
+     * @param key Setting name
+     * @return Its value, or null if it was never saved
+     */
+    public synchronized String getSetting(String key) {
+        return settings.getProperty(key);
+    }
+    
+    /**
+     * Store a setting so it survives restarts (written at once, via a temp file)
+     * @param key Setting name
+     * @param value New value, or null to remove it
+     */
+    public synchronized void saveSetting(String key, String value) {
+        if (value == null) {
+            settings.remove(key);
+        } else {
+            settings.setProperty(key, value);
+        }
+        Path temp = settingsFile.resolveSibling(settingsFile.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                settings.store(writer, "P2P chat node settings");
+            }
+            Files.move(temp, settingsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[History Error] Cannot save settings: " + e.getMessage());
+        }
+    }
+    
     /**
      * Save a message to history (main method to be called from Node)
      * @param sender Name of message sender
@@ -56,36 +186,43 @@ public class MessageHistory {
      * @param messageType Type of message: "sent", "received", "system"
      */
     public void saveMessage(String sender, String message, String messageType) {
-        try {
-            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-            String formattedMessage;
-            
-            if (messageType.equals("system")) {
-                formattedMessage = String.format("[%s] [SYSTEM] %s", timestamp, message);
-            } else {
-                String typeSymbol = messageType.equals("sent") ? "→" : "←";
-                formattedMessage = String.format("[%s] %s %s: %s", 
-                                                timestamp, typeSymbol, sender, message);
-            }
-            
-            // Add to memory cache
-            synchronized(messages) {
-                messages.add(formattedMessage);
-                
-                // Limit memory usage
-                if (messages.size() > maxHistorySize) {
-                    messages.remove(0);
+        long start = System.nanoTime();
+        String timestamp = LocalTime.now().format(TIME_FORMAT);
+        String formattedMessage;
+        
+        if (messageType.equals("system")) {
+            formattedMessage = String.format("[%s] [SYSTEM] %s", timestamp, message);
+        } else {
+            String typeSymbol = messageType.equals("sent") ? "→" : "←";
+            formattedMessage = String.format("[%s] %s %s: %s", 
+                                            timestamp, typeSymbol, sender, message);
+        }
+        
+        // Add to memory cache (ring buffer - the oldest entry is overwritten once full)
+        messages.add(formattedMessage);
+        
+        // Save to file - queued, written in batches by the background writer
+        if (writer != null) {
+            writer.append(formattedMessage);
+        }
+        
+        // Save to the message log and index it for search
+        if (log != null) {
+            try {
+                synchronized (indexLock) {
+                    if (pendingImport != null) {
+                        // Keep log order: these go in after the imported history
+                        pendingImport.add(new MessageLog.Entry(-1, System.currentTimeMillis(), formattedMessage));
+                    } else {
+                        long seq = log.append(System.currentTimeMillis(), formattedMessage);
+                        index.add(seq, formattedMessage);
+                    }
                 }
+            } catch (IOException e) {
+                System.err.println("[History Error] Cannot save message: " + e.getMessage());
             }
-            
-            // Save to file
-            try (FileWriter writer = new FileWriter(filename, true)) {
-                writer.write(formattedMessage + "\n");
-            }
-            
-        } catch (IOException e) {
-            System.err.println("[History Error] Cannot save message: " + e.getMessage());
         }
+        saveLatency.recordSince(start);
     }
     
     /**
@@ -101,44 +238,284 @@ public class MessageHistory {
      * @param count Number of messages to display
      */
     public void displayRecentMessages(int count) {
+        List<String> recent = getLastMessages(count);
         System.out.println("\n" + "=".repeat(60));
-        System.out.println("📜 CHAT HISTORY (Last " + Math.min(count, messages.size()) + " messages)");
+        System.out.println("📜 CHAT HISTORY (Last " + recent.size() + " messages)");
         System.out.println("=".repeat(60));
         
-        if (messages.isEmpty()) {
+        if (recent.isEmpty()) {
             System.out.println("No messages in history.");
         } else {
-            int startIndex = Math.max(0, messages.size() - count);
-            for (int i = startIndex; i < messages.size(); i++) {
-                System.out.println(messages.get(i));
+            for (String message : recent) {
+                System.out.println(message);
             }
         }
         System.out.println("=".repeat(60));
     }
     
+    /**
+     * Get the last messages from the on-disk log (not limited to the memory cache)
+     * @param count Number of messages
+     * @return Messages, oldest first
+     */
+    public List<String> getLastMessages(int count) {
+        if (log == null) {
+            return messages.last(count);
+        }
+        List<String> result = new ArrayList<>();
+        synchronized (indexLock) {
+            // During an import the newest messages are still waiting in pendingImport
+            List<MessageLog.Entry> pending = pendingImport == null ? Collections.emptyList() : pendingImport;
+            for (MessageLog.Entry entry : log.getLast(Math.max(0, count - pending.size()))) {
+                result.add(entry.text);
+            }
+            for (MessageLog.Entry entry : pending.subList(Math.max(0, pending.size() - count), pending.size())) {
+                result.add(entry.text);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Get one stored message by its number in the log
+     * @param index Message number, 0 = first one ever saved
+     * @return The message, or null if there is none (or retention deleted it)
+     */
+    public String getMessage(long index) {
+        if (log == null) {
+            return null;
+        }
+        MessageLog.Entry entry = log.get(index);
+        return entry == null ? null : entry.text;
+    }
+    
+    /**
+     * Get number of messages stored on disk
+     * @return Stored message count
+     */
+    public long getStoredMessageCount() {
+        return log == null ? 0 : log.size() - log.firstSeq();
+    }
+    
     /**
      * Get all messages as List<String> (for Node compatibility)
      * @return List of all messages
      */
     public List<String> getAllMessages() {
-        return new ArrayList<>(messages);
+        return messages.snapshot();
     }
     
     /**
-     * Search for messages containing specific text
-     * @param keyword Text to search for
-     * @return List of matching messages
+     * Search stored messages (including ones no longer in the memory cache).
+     * All words must match; a word ending in '*' matches as a prefix,
+     * e.g. "ali* hello" finds messages with "alice" and "hello".
+     * @param keyword Words to search for
+     * @return List of matching messages, oldest first
      */
     public List<String> searchMessages(String keyword) {
+        long start = System.nanoTime();
         List<String> results = new ArrayList<>();
-        for (String message : messages) {
-            if (message.toLowerCase().contains(keyword.toLowerCase())) {
-                results.add(message);
+        if (log == null) {
+            // No log: plain scan of the memory cache
+            String needle = keyword.toLowerCase();
+            for (String message : messages.snapshot()) {
+                if (message.toLowerCase().contains(needle)) {
+                    results.add(message);
+                }
+            }
+            searchLatency.recordSince(start);
+            return results;
+        }
+        
+        long[] ids;
+        List<String> pending = new ArrayList<>();
+        synchronized (indexLock) {
+            ids = index.search(keyword);
+            if (pendingImport != null) {
+                // Live messages saved during an import are not indexed yet: search them separately
+                SearchIndex live = new SearchIndex();
+                for (int i = 0; i < pendingImport.size(); i++) {
+                    live.add(i, pendingImport.get(i).text);
+                }
+                for (long i : live.search(keyword)) {
+                    pending.add(pendingImport.get((int) i).text);
+                }
             }
         }
+        for (long id : ids) {
+            MessageLog.Entry entry = log.get(id);
+            if (entry != null) {
+                results.add(entry.text);
+            }
+        }
+        results.addAll(pending);
+        searchLatency.recordSince(start);
         return results;
     }
     
+    /**
+     * Every message ever written to the history file, oldest first: the
+     * archived (rotated) files, then the current one. Read lazily, one line
+     * at a time, so it works for any amount of history. Close the stream when done.
+     * @return Stream of message lines
+     */
+    public Stream<String> replay() {
+        if (writer != null) {
+            writer.flush();
+        }
+        Stream<String> archived = archive == null ? Stream.empty() : archive.lines();
+        Stream<String> current;
+        try {
+            current = Files.lines(Paths.get(filename), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            current = Stream.empty();
+        }
+        return Stream.concat(archived, current).filter(HistoryLoader::isMessageLine);
+    }
+    
+    /**
+     * Search the full history including archived files, by streaming through
+     * them (slower than searchMessages, which only sees the message log).
+     * All words must appear; a trailing '*' is ignored.
+     * @param keyword Words to search for
+     * @return List of matching messages, oldest first
+     */
+    public List<String> searchAllMessages(String keyword) {
+        long start = System.nanoTime();
+        String[] words = keyword.toLowerCase().replace("*", "").trim().split("\\s+");
+        List<String> results = new ArrayList<>();
+        try (Stream<String> lines = replay()) {
+            lines.filter(line -> {
+                String lower = line.toLowerCase();
+                for (String word : words) {
+                    if (!lower.contains(word)) {
+                        return false;
+                    }
+                }
+                return true;
+            }).forEach(results::add);
+        }
+        searchLatency.recordSince(start);
+        return results;
+    }
+    
+    /**
+     * Archive retention deleted the history written up to this time: delete
+     * the same messages from the message log and the search index
+     */
+    private void deleteLogUpTo(long time) {
+        synchronized (indexLock) {
+            if (pendingImport != null) {
+                return; // Still importing; the next archive deletion catches up
+            }
+            try {
+                if (log.deleteBefore(log.seqAtOrAfter(time)) > 0) {
+                    index = index.from(log.firstSeq());
+                }
+            } catch (IOException e) {
+                System.err.println("[History Error] Cannot delete old messages: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Build the search index for messages already in the log, in the background.
+     * New messages go into the current index meanwhile; both are merged at the end.
+     */
+    private void rebuildSearchIndex() {
+        if (log == null) {
+            return;
+        }
+        long end;
+        int generation;
+        synchronized (indexLock) {
+            end = log.size();
+            generation = indexGeneration;
+        }
+        if (end == 0) {
+            return;
+        }
+        
+        Thread indexer = new Thread(() -> {
+            SearchIndex full = new SearchIndex();
+            long seq = log.firstSeq();
+            while (seq < end) {
+                List<MessageLog.Entry> chunk = log.read(seq, (int) Math.min(4096, end - seq));
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                for (MessageLog.Entry entry : chunk) {
+                    full.add(entry.seq, entry.text);
+                }
+                seq += chunk.size();
+            }
+            synchronized (indexLock) {
+                if (generation != indexGeneration) {
+                    return; // History was cleared meanwhile
+                }
+                full.addAll(index);
+                index = full;
+            }
+            System.out.println("[History] Search index ready: " + full.documentCount() + " messages");
+        }, "history-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+    
+    /**
+     * Import the first upTo bytes of the history file into the empty log, in
+     * the background. The file is parsed in parallel chunks (see HistoryLoader);
+     * messages saved meanwhile are appended once the import is done.
+     */
+    private void importHistoryFile(HistoryLoader loader, long upTo) {
+        int generation;
+        synchronized (indexLock) {
+            pendingImport = new ArrayList<>();
+            generation = indexGeneration;
+        }
+        // The text file has no dates, so imported lines get the file's time
+        long timestamp = new File(filename).lastModified();
+        
+        Thread importer = new Thread(() -> {
+            long started = System.currentTimeMillis();
+            long imported = 0;
+            try {
+                imported = loader.forEachChunk(upTo, lines -> {
+                    // Small batches, so live messages don't wait long for the lock
+                    for (int from = 0; from < lines.size(); from += 4096) {
+                        synchronized (indexLock) {
+                            if (generation != indexGeneration) {
+                                return false; // History was cleared meanwhile
+                            }
+                            for (String line : lines.subList(from, Math.min(lines.size(), from + 4096))) {
+                                long seq = log.append(timestamp, line);
+                                index.add(seq, line);
+                            }
+                        }
+                    }
+                    return true;
+                });
+            } catch (IOException e) {
+                System.err.println("[History Error] Cannot import history: " + e.getMessage());
+            }
+            synchronized (indexLock) {
+                try {
+                    for (MessageLog.Entry entry : pendingImport) {
+                        long seq = log.append(entry.timestamp, entry.text);
+                        index.add(seq, entry.text);
+                    }
+                } catch (IOException e) {
+                    System.err.println("[History Error] Cannot save message: " + e.getMessage());
+                }
+                pendingImport = null;
+            }
+            System.out.println("[History] Imported " + imported + " messages from " + filename +
+                               " in " + (System.currentTimeMillis() - started) + " ms");
+        }, "history-importer");
+        importer.setDaemon(true);
+        importer.start();
+    }
+    
     /**
      * Display search results
      * @param keyword Search term
@@ -170,19 +547,55 @@ public class MessageHistory {
             return false;
         }
         
-        try {
-            messages.clear();
-            try (FileWriter writer = new FileWriter(filename)) {
-                writer.write("========================================\n");
-                writer.write("HISTORY CLEARED: " + 
-                            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "\n");
-                writer.write("========================================\n");
+        messages.clear();
+        if (log != null) {
+            try {
+                synchronized (indexLock) {
+                    log.clear();
+                    index = new SearchIndex();
+                    indexGeneration++;
+                    if (pendingImport != null) {
+                        pendingImport.clear();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[History Error] Cannot clear message log: " + e.getMessage());
+            }
+        }
+        String header = "========================================\n" +
+                        "HISTORY CLEARED: " + 
+                        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "\n" +
+                        "========================================\n";
+        if (writer != null) {
+            writer.truncate(header);
+            if (archive != null) {
+                archive.deleteAll();
+            }
+        } else {
+            try (FileWriter fileWriter = new FileWriter(filename)) {
+                fileWriter.write(header);
+            } catch (IOException e) {
+                System.err.println("[History Error] Cannot clear history: " + e.getMessage());
+                return false;
             }
-            System.out.println("[History] History cleared.");
-            return true;
-        } catch (IOException e) {
-            System.err.println("[History Error] Cannot clear history: " + e.getMessage());
-            return false;
+        }
+        System.out.println("[History] History cleared.");
+        return true;
+    }
+    
+    /**
+     * Write out every queued message and close the history file.
+     * Called on /exit so nothing is lost.
+     */
+    public void close() {
+        if (writer != null) {
+            writer.close();
+        }
+        if (archive != null) {
+            archive.close();
+        }
+        if (log != null) {
+            log.close();
         }
     }
     
@@ -191,6 +604,9 @@ public class MessageHistory {
      * @return File information string
      */
     public String getFileInfo() {
+        if (writer != null) {
+            writer.flush();
+        }
         File file = new File(filename);
         if (!file.exists()) {
             return "File not found.";
@@ -201,8 +617,12 @@ public class MessageHistory {
                                 .format(new Date(file.lastModified()));
         
         return String.format(
-            "File: %s\nSize: %d KB\nMessages: %d\nLast Modified: %s",
-            filename, fileSizeKB, messages.size(), lastModified
+            "File: %s\nSize: %d KB\nMessages: %d\nStored: %d (%d log segments)\n" +
+            "Archived: %d files (%d KB)\nLast Modified: %s",
+            filename, fileSizeKB, messages.size(), getStoredMessageCount(),
+            log == null ? 0 : log.getSegmentCount(),
+            archive == null ? 0 : archive.segments().size(),
+            archive == null ? 0 : archive.totalBytes() / 1024, lastModified
         );
     }
     
@@ -0,0 +1,447 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * Segmented, memory-mapped message log.
+ *
+ * Messages are numbered 0, 1, 2, ... (their sequence number) and stored in
+ * fixed-size segment files named after the sequence number of their first
+ * record. Each segment has a sparse index (one entry every INDEX_INTERVAL
+ * records) holding the record position and timestamp, so finding message N
+ * is a floor lookup over segments plus a binary search in one index plus a
+ * short scan - no message is ever loaded onto the heap unless it is read.
+ *
+ * Record layout in a segment (big endian):
+ *   int    recordLength   bytes that follow (8 + text bytes); 0 marks the end
+ *   long   timestamp      epoch millis
+ *   ...    text           UTF-8
+ *
+ * Index entry layout: int relative record number, int position + 1, long timestamp
+ * (position is stored +1 so an all-zero entry means "unused").
+ *
+ * Appends are serialized; reads are lock-free and may run concurrently.
+ */
+public class MessageLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int RECORD_HEADER = 4 + 8;
+    private static final int INDEX_ENTRY = 4 + 4 + 8;
+
+    /**
+     * One message read back from the log
+     */
+    public static class Entry {
+        public final long seq;
+        public final long timestamp;
+        public final String text;
+
+        Entry(long seq, long timestamp, String text) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private volatile long nextSeq;
+    private Segment active;
+
+    public MessageLog(String directory) throws IOException {
+        this(directory, Integer.getInteger("p2p.log.segmentSize", DEFAULT_SEGMENT_SIZE));
+    }
+
+    public MessageLog(String directory, int segmentSize) throws IOException {
+        this.dir = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                 .filter(name -> name.endsWith(".log"))
+                 .forEach(name -> bases.add(Long.parseLong(name.substring(0, name.length() - 4))));
+        }
+        Collections.sort(bases);
+        for (long base : bases) {
+            Segment segment = Segment.open(dir, base, segmentSize);
+            segments.put(base, segment);
+            active = segment;
+        }
+        if (active == null) {
+            active = Segment.open(dir, 0, segmentSize);
+            segments.put(0L, active);
+        }
+        nextSeq = active.base + active.count;
+    }
+
+    /**
+     * Append one message
+     * @return its sequence number
+     */
+    public synchronized long append(long timestamp, String text) throws IOException {
+        if (!active.tryAppend(timestamp, text, encoder)) {
+            // Segment full - seal it and start a new one
+            active.flush();
+            Segment next = Segment.open(dir, nextSeq, segmentSize);
+            if (!next.tryAppend(timestamp, text, encoder)) {
+                next.delete();
+                throw new IOException("Message too large for a log segment");
+            }
+            segments.put(next.base, next);
+            active = next;
+        }
+        return nextSeq++;
+    }
+
+    /**
+     * Number of messages stored
+     */
+    public long size() {
+        return nextSeq;
+    }
+
+    /**
+     * Read message number seq (0 = oldest), or null if there is no such message
+     */
+    public Entry get(long seq) {
+        List<Entry> one = read(seq, 1);
+        return one.isEmpty() ? null : one.get(0);
+    }
+
+    /**
+     * Read the last count messages, oldest first
+     */
+    public List<Entry> getLast(int count) {
+        long end = nextSeq;
+        long from = Math.max(firstSeq(), end - count);
+        return read(from, (int) (end - from));
+    }
+
+    /**
+     * Read up to count consecutive messages starting at seq
+     */
+    public List<Entry> read(long seq, int count) {
+        List<Entry> result = new ArrayList<>(Math.max(0, Math.min(count, 1024)));
+        long end = Math.min(nextSeq, seq + count);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        while (seq < end && seq >= 0) {
+            Map.Entry<Long, Segment> floor = segments.floorEntry(seq);
+            if (floor == null) {
+                break;
+            }
+            Segment segment = floor.getValue();
+            int taken = segment.read(seq, end, result, decoder);
+            if (taken == 0) {
+                break;
+            }
+            seq += taken;
+        }
+        return result;
+    }
+
+    /**
+     * Sequence number of the first message with timestamp >= the given time,
+     * or size() if there is none. Uses the per-segment timestamp indexes.
+     */
+    public long seqAtOrAfter(long timestamp) {
+        for (Segment segment : segments.values()) {
+            long seq = segment.seqAtOrAfter(timestamp);
+            if (seq >= 0) {
+                return seq;
+            }
+        }
+        return nextSeq;
+    }
+
+    /**
+     * Sequence number of the oldest message still stored
+     */
+    public long firstSeq() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Delete the sealed segments whose messages all come before seq (the
+     * active segment is kept). Remaining messages keep their sequence numbers.
+     * @return number of segments deleted
+     */
+    public synchronized int deleteBefore(long seq) throws IOException {
+        int deleted = 0;
+        Map.Entry<Long, Segment> first;
+        while ((first = segments.firstEntry()) != null && first.getValue() != active) {
+            Long nextBase = segments.higherKey(first.getKey());
+            if (nextBase == null || nextBase > seq) {
+                break;
+            }
+            segments.remove(first.getKey());
+            first.getValue().delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete every stored message
+     */
+    public synchronized void clear() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        active = Segment.open(dir, 0, segmentSize);
+        segments.put(0L, active);
+        nextSeq = 0;
+    }
+
+    /**
+     * Force mapped changes of the active segment to disk
+     */
+    public synchronized void flush() {
+        active.flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * One segment: a mapped data file plus its mapped sparse index
+     */
+    private static class Segment {
+        final long base;
+        final Path dataPath;
+        final Path indexPath;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        // Written only under the log lock, published through MessageLog.nextSeq
+        int count;
+        int writePos;
+        int indexEntries;
+
+        private Segment(long base, Path dataPath, Path indexPath, MappedByteBuffer data, MappedByteBuffer index) {
+            this.base = base;
+            this.dataPath = dataPath;
+            this.indexPath = indexPath;
+            this.data = data;
+            this.index = index;
+        }
+
+        static Segment open(Path dir, long base, int size) throws IOException {
+            String name = String.format("%020d", base);
+            Path dataPath = dir.resolve(name + ".log");
+            Path indexPath = dir.resolve(name + ".idx");
+            int maxRecords = size / (RECORD_HEADER + 1);
+            int indexSize = (maxRecords / INDEX_INTERVAL + 1) * INDEX_ENTRY;
+            Segment segment = new Segment(base, dataPath, indexPath, map(dataPath, size), map(indexPath, indexSize));
+            segment.recover();
+            return segment;
+        }
+
+        private static MappedByteBuffer map(Path path, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /**
+         * Find where writing stopped: last index entry, then scan the few records after it
+         */
+        private void recover() {
+            int entries = index.capacity() / INDEX_ENTRY;
+            while (indexEntries < entries && index.getInt(indexEntries * INDEX_ENTRY + 4) != 0) {
+                indexEntries++;
+            }
+            if (indexEntries == 0) {
+                return;
+            }
+            int last = (indexEntries - 1) * INDEX_ENTRY;
+            count = index.getInt(last);
+            writePos = index.getInt(last + 4) - 1;
+            while (writePos + RECORD_HEADER <= data.capacity()) {
+                int length = data.getInt(writePos);
+                if (length <= 0 || writePos + 4 + length > data.capacity()) {
+                    break;
+                }
+                writePos += 4 + length;
+                count++;
+            }
+        }
+
+        /**
+         * Encode the text straight into the mapped segment
+         * @return false if the record does not fit
+         */
+        boolean tryAppend(long timestamp, String text, CharsetEncoder encoder) {
+            int start = writePos;
+            // Always leave room for the end marker (length 0) after this record
+            int limit = data.capacity() - 4;
+            if (start + RECORD_HEADER > limit) {
+                return false;
+            }
+            ByteBuffer target = data.duplicate();
+            target.limit(limit).position(start + RECORD_HEADER);
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(text), target, true);
+            if (result.isOverflow() || encoder.flush(target).isOverflow()) {
+                return false;
+            }
+            int textLength = target.position() - start - RECORD_HEADER;
+
+            data.putLong(start + 4, timestamp);
+            if (count % INDEX_INTERVAL == 0) {
+                int entry = indexEntries * INDEX_ENTRY;
+                index.putInt(entry, count);
+                index.putLong(entry + 8, timestamp);
+                index.putInt(entry + 4, start + 1);
+                indexEntries++;
+            }
+            // Length last: a record only becomes visible to recovery once complete
+            data.putInt(start, 8 + textLength);
+            writePos = start + RECORD_HEADER + textLength;
+            count++;
+            return true;
+        }
+
+        /**
+         * Read records [seq, end) that live in this segment into result
+         * @return number of records read
+         */
+        int read(long seq, long end, List<Entry> result, CharsetDecoder decoder) {
+            int relative = (int) (seq - base);
+            if (relative < 0) {
+                return 0;
+            }
+            int pos = positionOf(relative);
+            if (pos < 0) {
+                return 0;
+            }
+            int taken = 0;
+            ByteBuffer view = data.duplicate();
+            while (seq + taken < end && pos + RECORD_HEADER <= data.capacity()) {
+                int length = data.getInt(pos);
+                if (length <= 0) {
+                    break;
+                }
+                long timestamp = data.getLong(pos + 4);
+                view.limit(pos + 4 + length).position(pos + RECORD_HEADER);
+                result.add(new Entry(seq + taken, timestamp, decode(view, decoder)));
+                pos += 4 + length;
+                taken++;
+            }
+            return taken;
+        }
+
+        /**
+         * Position of a record: binary search the sparse index, then skip forward
+         */
+        private int positionOf(int relative) {
+            int entries = indexEntries;
+            int lo = 0;
+            int hi = entries - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int rel = index.getInt(mid * INDEX_ENTRY);
+                if (rel <= relative) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (found < 0) {
+                return -1;
+            }
+            int rel = index.getInt(found * INDEX_ENTRY);
+            int pos = index.getInt(found * INDEX_ENTRY + 4) - 1;
+            while (rel < relative) {
+                int length = data.getInt(pos);
+                if (length <= 0) {
+                    return -1;
+                }
+                pos += 4 + length;
+                rel++;
+            }
+            return pos;
+        }
+
+        /**
+         * First seq in this segment with timestamp >= the given time, or -1
+         */
+        long seqAtOrAfter(long timestamp) {
+            int entries = indexEntries;
+            if (entries == 0) {
+                return -1;
+            }
+            // Last index entry with an older timestamp, then scan from there
+            int lo = 0;
+            int hi = entries - 1;
+            int start = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (index.getLong(mid * INDEX_ENTRY + 8) < timestamp) {
+                    start = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            int rel = index.getInt(start * INDEX_ENTRY);
+            int pos = index.getInt(start * INDEX_ENTRY + 4) - 1;
+            while (pos + RECORD_HEADER <= data.capacity()) {
+                int length = data.getInt(pos);
+                if (length <= 0) {
+                    return -1;
+                }
+                if (data.getLong(pos + 4) >= timestamp) {
+                    return base + rel;
+                }
+                pos += 4 + length;
+                rel++;
+            }
+            return -1;
+        }
+
+        private static String decode(ByteBuffer bytes, CharsetDecoder decoder) {
+            try {
+                decoder.reset();
+                return decoder.decode(bytes).toString();
+            } catch (CharacterCodingException e) {
+                return "";
+            }
+        }
+
+        void flush() {
+            data.force();
+            index.force();
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(dataPath);
+            Files.deleteIfExists(indexPath);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * Process-wide metrics registry.
+ *
+ * Counters are LongAdders (striped, so hot paths on many threads don't
+ * contend), gauges are read on demand, and latencies go into
+ * LatencyHistograms. Classes look their metrics up once and keep them in
+ * static final fields, so recording costs no map lookup.
+ *
+ * Everything is shown by /stats and exported over JMX as one MBean whose
+ * attributes are the metric names (latencies as count, mean, p50, p99 and
+ * max in microseconds).
+ */
+public final class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    static {
+        gauge("jvm.threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("jvm.heap.used_kb", () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024);
+    }
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Register (or replace) a value that is read when metrics are shown
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Every metric as name -> value, sorted by name; histograms are
+     * flattened into name.count, name.mean_us, name.p50_us, ...
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean_us", Math.round(histogram.getMean() / 1000));
+            values.put(name + ".p50_us", histogram.getPercentile(50) / 1000);
+            values.put(name + ".p99_us", histogram.getPercentile(99) / 1000);
+            values.put(name + ".max_us", histogram.getMax() / 1000);
+        });
+        return values;
+    }
+
+    /**
+     * Print all metrics (the /stats command)
+     */
+    public static void print() {
+        System.out.println("\n📊 Stats:");
+        for (String name : new TreeSet<>(counters.keySet())) {
+            System.out.printf("  %-32s %d%n", name, counters.get(name).sum());
+        }
+        for (String name : new TreeSet<>(gauges.keySet())) {
+            System.out.printf("  %-32s %d%n", name, gauges.get(name).getAsLong());
+        }
+        if (!histograms.isEmpty()) {
+            System.out.printf("  %-32s %8s %9s %9s %9s %9s%n", "latency (µs)", "count", "mean", "p50", "p99", "max");
+            for (String name : new TreeSet<>(histograms.keySet())) {
+                LatencyHistogram h = histograms.get(name);
+                System.out.printf("  %-32s %8d %9.1f %9.1f %9.1f %9.1f%n", name, h.getCount(),
+                                  h.getMean() / 1000, h.getPercentile(50) / 1000.0,
+                                  h.getPercentile(99) / 1000.0, h.getMax() / 1000.0);
+            }
+        }
+    }
+
+    /**
+     * Export the registry over JMX as p2pchat:type=Metrics,port=<port>
+     */
+    public static void registerMBean(int port) {
+        try {
+            ObjectName name = new ObjectName("p2pchat:type=Metrics,port=" + port);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            System.err.println("Cannot register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read-only DynamicMBean over snapshot(); the attribute list follows
+     * whatever metrics exist when a JMX client asks for it
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "P2P chat node metrics",
+                                 attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
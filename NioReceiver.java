@@ -0,0 +1,347 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based receiver engine.
+ * One acceptor thread plus a small fixed group of event loops serve every
+ * inbound connection with non-blocking reads, so the thread count stays
+ * constant no matter how many peers are connected.
+ * A connection that is over its rate limit (see AdmissionControl) keeps its
+ * next frame and is taken out of OP_READ until a token is due.
+ */
+public class NioReceiver implements Runnable {
+    private final int port;
+    private final Dispatcher dispatcher;
+    private final AdmissionControl admission;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+
+    public NioReceiver(int port, Dispatcher dispatcher) {
+        this(port, dispatcher, new AdmissionControl(AdmissionControl.Limits.fromSystemProperties()));
+    }
+
+    public NioReceiver(int port, Dispatcher dispatcher, AdmissionControl admission) {
+        this(port, dispatcher, admission, defaultLoopCount());
+    }
+
+    public NioReceiver(int port, Dispatcher dispatcher, AdmissionControl admission, int loopCount) {
+        this.port = port;
+        this.dispatcher = dispatcher;
+        this.admission = admission;
+        this.loops = new EventLoop[loopCount];
+        this.running = true;
+    }
+
+    /**
+     * -Dp2p.receiver.loops=N overrides the number of event loops
+     */
+    private static int defaultLoopCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Integer.getInteger("p2p.receiver.loops", Math.min(4, Math.max(1, cores / 2)));
+    }
+
+    @Override
+    public void run() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+            System.out.println("✅ Listening on port " + port + " (NIO, " + loops.length + " event loops)");
+
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel client;
+                while ((client = serverChannel.accept()) != null) {
+                    accept(client);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("Error in receiver: " + e.getMessage());
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Admit one new client and hand it to an event loop. A client that fails
+     * here (e.g. reset during setup) only loses its own connection.
+     */
+    private void accept(SocketChannel client) {
+        InetSocketAddress remote;
+        try {
+            remote = (InetSocketAddress) client.getRemoteAddress();
+        } catch (IOException e) {
+            closeQuietly(client);
+            return;
+        }
+        if (remote == null || !admission.admit(remote.getAddress())) {
+            closeQuietly(client);
+            return;
+        }
+        try {
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            admission.release(remote.getAddress());
+            closeQuietly(client);
+            return;
+        }
+        int index = Math.floorMod(nextLoop.getAndIncrement(), loops.length);
+        loops[index].register(new Connection(client, remote));
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+        try {
+            if (acceptSelector != null) {
+                acceptSelector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Per-connection state: the decoder, the read buffer holding a partial
+     * frame, and while throttled the frame waiting for a token
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final InetSocketAddress remote;
+        final FrameCodec codec = new FrameCodec();
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.READ_BUFFER_SIZE);
+        Frame held;
+        long resumeAt;
+        long lastRead = System.nanoTime();
+
+        Connection(SocketChannel channel, InetSocketAddress remote) {
+            this.channel = channel;
+            this.remote = remote;
+            Receiver.connectionsTotal.increment();
+            Receiver.connectionsActive.increment();
+        }
+    }
+
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        // Throttled connections, earliest resume time first
+        private final PriorityQueue<SelectionKey> paused = new PriorityQueue<>(
+            Comparator.comparingLong(key -> ((Connection) key.attachment()).resumeAt));
+        private long nextIdleCheck = System.nanoTime();
+
+        EventLoop(int index) throws IOException {
+            super("nio-receiver-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(Connection conn) {
+            pending.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * Wake the loop up so it sees running is false and closes its connections
+         */
+        void shutdown() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long waitNanos = nextIdleCheck - System.nanoTime();
+                    if (!paused.isEmpty()) {
+                        waitNanos = Math.min(waitNanos, ((Connection) paused.peek().attachment()).resumeAt - System.nanoTime());
+                    }
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    resumeDue();
+                    closeIdle();
+
+                    Connection conn;
+                    while ((conn = pending.poll()) != null) {
+                        try {
+                            conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                        } catch (ClosedChannelException e) {
+                            close(conn);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println("Error in receiver event loop: " + e.getMessage());
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        /**
+         * Close every connection of this loop (on its own thread, so each is released once)
+         */
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    // Cancelled keys were closed already and stay listed until the next select
+                    if (key.isValid()) {
+                        close(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Keys are gone with the selector
+            }
+            Connection conn;
+            while ((conn = pending.poll()) != null) {
+                close(conn);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        /**
+         * Let throttled connections whose wait is over read again
+         */
+        private void resumeDue() {
+            long now = System.nanoTime();
+            while (!paused.isEmpty() && ((Connection) paused.peek().attachment()).resumeAt <= now) {
+                SelectionKey key = paused.poll();
+                if (!key.isValid()) {
+                    continue;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                try {
+                    drainFrames(key, (Connection) key.attachment());
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * Once a second: close connections that sent nothing within the read timeout
+         */
+        private void closeIdle() {
+            long now = System.nanoTime();
+            if (now < nextIdleCheck || Receiver.READ_TIMEOUT_MS <= 0) {
+                return;
+            }
+            nextIdleCheck = now + TimeUnit.SECONDS.toNanos(1);
+            long limit = TimeUnit.MILLISECONDS.toNanos(Receiver.READ_TIMEOUT_MS);
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                // Throttled connections are idle because of us, not the peer
+                if (key.isValid() && conn.held == null && now - conn.lastRead > limit) {
+                    close(key);
+                }
+            }
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            try {
+                int n = channel.read(conn.buffer);
+                if (n > 0) {
+                    conn.lastRead = System.nanoTime();
+                    Receiver.bytesRead.add(n);
+                    drainFrames(key, conn);
+                }
+                if (n < 0) {
+                    close(key);
+                }
+            } catch (IOException e) {
+                // Ignore connection errors
+                close(key);
+            }
+        }
+
+        /**
+         * Deliver every complete frame in the buffer and keep the partial tail.
+         * Stops early, and stops reading the socket, when over the rate limit.
+         */
+        private void drainFrames(SelectionKey key, Connection conn) throws IOException {
+            conn.buffer.flip();
+            try {
+                Frame frame = conn.held;
+                conn.held = null;
+                if (frame == null) {
+                    frame = conn.codec.decode(conn.buffer);
+                }
+                while (frame != null) {
+                    long wait = admission.throttle(conn.remote.getAddress());
+                    if (wait > 0) {
+                        conn.held = frame;
+                        conn.resumeAt = System.nanoTime() + wait;
+                        key.interestOps(0);
+                        paused.add(key);
+                        return;
+                    }
+                    dispatcher.dispatch(frame, conn.remote);
+                    frame = conn.codec.decode(conn.buffer);
+                }
+            } finally {
+                conn.buffer = FrameCodec.compact(conn.buffer);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            close((Connection) key.attachment());
+        }
+
+        private void close(Connection conn) {
+            conn.codec.close();
+            admission.release(conn.remote.getAddress());
+            Receiver.connectionsActive.decrement();
+            closeQuietly(conn.channel);
+        }
+    }
+}
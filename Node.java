@@ -1,9 +1,28 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Node {
     private final Peers peers;
     private final MessageHistory history;
     private final Receiver receiver;
+    private final GossipRelay gossip;
+    private final Outbox outbox;
+    private final HistorySync sync;
+    private final FileTransfer files;
+    private final Heartbeat heartbeat;
+    private final PeerExchange pex;
+    private final Rooms rooms;
+    private final Delivery delivery;
     private final String username;
     private final int listenPort;
     
@@ -13,6 +32,104 @@ public class Node {
         this.peers = new Peers();
         this.history = new MessageHistory(port);
         this.receiver = new Receiver(port, history);
+        this.gossip = new GossipRelay(peers, history);
+        receiver.getDispatcher().register(Frame.GOSSIP, gossip::onFrame);
+        Sender.setLocalId(username + "@" + port);
+        Metrics.registerMBean(port);
+        this.outbox = openOutbox(port);
+        this.delivery = new Delivery(port, history);
+        receiver.getDispatcher().register(Frame.SEQ_MESSAGE, delivery::onFrame);
+        if (outbox != null) {
+            receiver.getDispatcher().register(Frame.ACK, outbox::onAck);
+        }
+        this.sync = openSync(port, history);
+        if (sync != null) {
+            gossip.setHistorySync(sync);
+            for (byte type : HistorySync.FRAME_TYPES) {
+                receiver.getDispatcher().register(type, sync::onFrame);
+            }
+        }
+        this.files = openFileTransfer(port);
+        if (files != null) {
+            for (byte type : FileTransfer.FRAME_TYPES) {
+                receiver.getDispatcher().register(type, files::onFrame);
+            }
+        }
+        this.rooms = new Rooms(peers, history);
+        for (byte type : Rooms.FRAME_TYPES) {
+            receiver.getDispatcher().register(type, rooms::onFrame);
+        }
+        this.heartbeat = new Heartbeat(peers);
+        for (byte type : Heartbeat.FRAME_TYPES) {
+            receiver.getDispatcher().register(type, heartbeat::onFrame);
+        }
+        heartbeat.setListener(this::peerStateChanged);
+        heartbeat.start();
+        this.pex = new PeerExchange(peers, port);
+        receiver.getDispatcher().register(Frame.PEX, pex::onFrame);
+        // A peer opening a connection to us becomes our peer too (if it wasn't),
+        // and it is back online: flush what we queued for it and catch up on
+        // what either side missed
+        receiver.getDispatcher().register(Frame.HELLO, (frame, remote) -> {
+            Peer peer = pex.onHello(frame, remote);
+            if (peer == null) {
+                return;
+            }
+            if (outbox != null) {
+                outbox.retryNow(peer.getId());
+            }
+            if (sync != null) {
+                sync.syncLater(peer);
+            }
+            rooms.introduce(peer);
+        });
+    }
+    
+    private static Outbox openOutbox(int port) {
+        try {
+            return new Outbox(port);
+        } catch (IOException e) {
+            System.err.println("❌ Cannot open outbox, messages to offline peers will be lost: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * A peer answers heartbeats again: deliver what was queued and catch up
+     */
+    private void peerStateChanged(Peer peer, Peer.State from, Peer.State to) {
+        if (to == Peer.State.DOWN) {
+            rooms.memberDown(peer.getId());
+            return;
+        }
+        if (to != Peer.State.UP) {
+            return;
+        }
+        rooms.memberUp(peer);
+        if (outbox != null) {
+            outbox.retryNow(peer.getId());
+        }
+        if (sync != null && from == Peer.State.DOWN) {
+            sync.syncWith(peer);
+        }
+    }
+    
+    private static HistorySync openSync(int port, MessageHistory history) {
+        try {
+            return new HistorySync(port, history);
+        } catch (IOException e) {
+            System.err.println("❌ Cannot open sync store, missed messages won't be synced: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private static FileTransfer openFileTransfer(int port) {
+        try {
+            return new FileTransfer(port);
+        } catch (IOException e) {
+            System.err.println("❌ Cannot open download directory, file transfer is off: " + e.getMessage());
+            return null;
+        }
     }
     
     public void start() {
@@ -27,7 +144,14 @@ public class Node {
         System.out.println("📋 Commands:");
         System.out.println("  /connect <ip> <port>  - Connect to a peer");
         System.out.println("  /msg <peerId> <text>  - Send message");
+        System.out.println("  /broadcast <text>     - Send message to all peers");
+        System.out.println("  /sendfile <peerId> <path> - Send a file");
+        System.out.println("  /gossip <text>        - Spread message through the mesh");
+        System.out.println("  /join <room>          - Join a room (also /leave, /say, /rooms)");
         System.out.println("  /peers                - List connected peers");
+        System.out.println("  /outbox [id]          - Show queued messages");
+        System.out.println("  /sync <peerId>        - Catch up on missed messages");
+        System.out.println("  /stats                - Show node metrics");
         System.out.println("  /exit                 - Exit program");
         System.out.println("=".repeat(40));
         
@@ -76,12 +200,87 @@ public class Node {
                 sendMessage(parts[1], parts[2]);
                 break;
                 
+            case "/sendfile":
+                if (parts.length < 3) {
+                    System.out.println("❌ Usage: /sendfile <peerId> <path>");
+                    return;
+                }
+                sendFile(parts[1], parts[2]);
+                break;
+                
+            case "/broadcast":
+                if (parts.length < 2) {
+                    System.out.println("❌ Usage: /broadcast <message>");
+                    return;
+                }
+                broadcastFromPrompt(input.substring(parts[0].length()).trim());
+                break;
+                
+            case "/gossip":
+                if (parts.length < 2) {
+                    System.out.println("❌ Usage: /gossip <message>");
+                    return;
+                }
+                gossipFromPrompt(input.substring(parts[0].length()).trim());
+                break;
+                
+            case "/join":
+            case "/leave":
+                if (parts.length < 2) {
+                    System.out.println("❌ Usage: " + command + " <room>");
+                    return;
+                }
+                joinOrLeave(command.equals("/join"), parts[1]);
+                break;
+                
+            case "/say":
+                if (parts.length < 3) {
+                    System.out.println("❌ Usage: /say <room> <message>");
+                    return;
+                }
+                say(parts[1], parts[2]);
+                break;
+                
+            case "/rooms":
+                rooms.printRooms();
+                break;
+                
             case "/peers":
                 peers.printPeers();
                 break;
                 
+            case "/outbox":
+                showOutbox(parts.length > 1 ? parts[1] : null);
+                break;
+                
+            case "/sync":
+                if (parts.length < 2) {
+                    System.out.println("❌ Usage: /sync <peerId>");
+                    return;
+                }
+                syncWith(parts[1]);
+                break;
+                
+            case "/stats":
+                Metrics.print();
+                break;
+                
             case "/exit":
                 System.out.println("👋 Goodbye!");
+                if (outbox != null) {
+                    outbox.close();
+                }
+                if (sync != null) {
+                    sync.close();
+                }
+                if (files != null) {
+                    files.close();
+                }
+                heartbeat.close();
+                pex.close();
+                delivery.close();
+                Sender.shutdown();
+                history.close();
                 System.exit(0);
                 break;
                 
@@ -98,7 +297,17 @@ public class Node {
         System.out.println("\n💡 Available Commands:");
         System.out.println("  /connect <ip> <port>  - Connect to another peer");
         System.out.println("  /msg <peerId> <text>  - Send message to peer");
+        System.out.println("  /broadcast <text>     - Send message to every peer");
+        System.out.println("  /sendfile <peerId> <path> - Send a file (resumes if interrupted)");
+        System.out.println("  /gossip <text>        - Relay message peer-to-peer to the whole mesh");
+        System.out.println("  /join <room>          - Join a room (kept after restart)");
+        System.out.println("  /leave <room>         - Leave a room");
+        System.out.println("  /say <room> <text>    - Send message to everyone in a room");
+        System.out.println("  /rooms                - Show rooms and member counts");
         System.out.println("  /peers                - Show connected peers");
+        System.out.println("  /outbox [id]          - Show messages waiting for offline peers");
+        System.out.println("  /sync <peerId>        - Fetch gossip missed while offline from a peer");
+        System.out.println("  /stats                - Show message, connection and latency metrics");
         System.out.println("  /help                 - Show this help");
         System.out.println("  /exit                 - Exit the program");
         System.out.println("\n📝 Example:");
@@ -106,16 +315,84 @@ public class Node {
         System.out.println("  /msg 127.0.0.1:5001 Hello!");
     }
     
-    private void connectToPeer(String ip, int port) {
-        if (ip.equals("127.0.0.1") && port == listenPort) {
+    private void connectToPeer(String host, int port) {
+        // Peers are known by IP address, as in the frames they send us (see Dispatcher.replyPeer)
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            System.out.println("❌ Unknown host: " + host);
+            return;
+        }
+        String ip = address.getHostAddress();
+        if (address.isLoopbackAddress() && port == listenPort) {
             System.out.println("❌ Cannot connect to yourself!");
             return;
         }
         
         Peer p = new Peer(ip, port);
-        peers.addPeer(p);
+        if (!peers.addPeer(p)) {
+            System.out.println("ℹ️ Already connected to " + ip + ":" + port);
+            if (sync != null) {
+                sync.syncWith(peers.getPeer(p.getId()));
+            }
+            return;
+        }
         System.out.println("✅ Connected to " + ip + ":" + port);
         history.add("Connected to " + ip + ":" + port);
+        // Swap peer samples, so we learn the rest of its mesh
+        pex.introduce(p);
+        rooms.introduce(p);
+        if (sync != null) {
+            sync.syncWith(p);
+        }
+    }
+    
+    private void joinOrLeave(boolean join, String name) {
+        String room;
+        try {
+            room = Rooms.normalize(name);
+        } catch (IllegalArgumentException e) {
+            System.out.println("❌ " + e.getMessage());
+            return;
+        }
+        if (join) {
+            System.out.println(rooms.join(room) ? "✅ Joined #" + room + " (" + rooms.getMembers(room).length + " other members)"
+                                                : "ℹ️ Already in #" + room);
+        } else {
+            System.out.println(rooms.leave(room) ? "👋 Left #" + room : "ℹ️ Not in #" + room);
+        }
+    }
+    
+    private void say(String name, String msg) {
+        String room;
+        try {
+            room = Rooms.normalize(name);
+        } catch (IllegalArgumentException e) {
+            System.out.println("❌ " + e.getMessage());
+            return;
+        }
+        if (!rooms.isJoined(room)) {
+            System.out.println("❌ Join #" + room + " first: /join " + room);
+            return;
+        }
+        int members = rooms.say(room, username + ": " + msg);
+        history.add("Me → #" + room + ": " + msg);
+        System.out.println("📤 [#" + room + "] to " + members + " members: " + msg);
+    }
+    
+    private void syncWith(String peerId) {
+        Peer p = peers.getPeer(peerId);
+        if (p == null) {
+            System.out.println("❌ Peer not found: " + peerId);
+            return;
+        }
+        if (sync == null) {
+            System.out.println("❌ Sync is not available");
+            return;
+        }
+        sync.syncNow(p);
+        System.out.println("🔄 Syncing history with " + peerId + "...");
     }
     
     private void sendMessage(String peerId, String msg) {
@@ -129,16 +406,171 @@ public class Node {
         // FIXED: Simple format - "Username: Message"
         String fullMessage = username + ": " + msg;
         
+        if (outbox != null) {
+            queueMessage(p, peerId, fullMessage, msg);
+            return;
+        }
+        
+        // Send in the background so a slow peer doesn't block the prompt
+        Sender.sendAsync(p, fullMessage).whenComplete((sent, error) -> {
+            if (error != null) {
+                System.out.println("❌ Failed to send: " + error.getMessage());
+            } else if (sent) {
+                history.add("Me → " + peerId + ": " + msg);
+                System.out.println("📤 Sent to " + peerId + ": " + msg);
+            } else {
+                System.out.println("❌ Failed to send to " + peerId);
+            }
+        });
+    }
+    
+    private void sendFile(String peerId, String path) {
+        Peer p = peers.getPeer(peerId);
+        if (p == null) {
+            System.out.println("❌ Peer not found: " + peerId);
+            System.out.println("   Use /peers to see connected peers");
+            return;
+        }
+        if (files == null) {
+            System.out.println("❌ File transfer is not available");
+            return;
+        }
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            System.out.println("❌ No such file: " + path);
+            return;
+        }
+        files.send(p, file);
+    }
+    
+    /**
+     * Store the message in the outbox; it is sent in the background and
+     * retried until the peer takes it
+     */
+    private void queueMessage(Peer p, String peerId, String fullMessage, String msg) {
+        Outbox.Message queued;
         try {
-            Sender.sendMessage(p, fullMessage);
+            queued = outbox.send(p, fullMessage);
+        } catch (IOException e) {
+            System.out.println("❌ Cannot queue message: " + e.getMessage());
+            return;
+        }
+        queued.whenDelivered().thenRun(() -> {
             history.add("Me → " + peerId + ": " + msg);
-            System.out.println("📤 Sent to " + peerId + ": " + msg);
-        } catch (Exception e) {
-            System.out.println("❌ Failed to send: " + e.getMessage());
+            System.out.println("📤 Delivered to " + peerId + ": " + msg);
+        });
+        queued.whenDelivered().copy().orTimeout(2, TimeUnit.SECONDS).exceptionally(error -> {
+            System.out.println("📮 " + peerId + " is unreachable, message #" + queued.id +
+                               " is queued and will be retried (see /outbox)");
+            return null;
+        });
+    }
+    
+    private void showOutbox(String id) {
+        if (outbox == null) {
+            System.out.println("❌ Outbox is not available");
+            return;
+        }
+        if (id == null) {
+            outbox.print();
+            return;
+        }
+        try {
+            Outbox.Message message = outbox.getMessage(Long.parseLong(id.replace("#", "")));
+            System.out.println(message == null ? "❌ No such message: " + id : "  " + message);
+        } catch (NumberFormatException e) {
+            System.out.println("❌ Usage: /outbox [messageId]");
+        }
+    }
+    
+    /**
+     * Send a message to every known peer concurrently
+     * @param msg Message text
+     * @return future with the delivery result per peer id (true = written)
+     */
+    public CompletableFuture<Map<String, Boolean>> broadcast(String msg) {
+        Map<Peer, CompletableFuture<Boolean>> sends = Sender.broadcast(peers.getAllPeers(), username + ": " + msg);
+        return CompletableFuture.allOf(sends.values().toArray(new CompletableFuture<?>[0]))
+            .handle((ignored, error) -> {
+                Map<String, Boolean> results = new LinkedHashMap<>();
+                sends.forEach((peer, send) -> results.put(peer.getId(),
+                    !send.isCompletedExceptionally() && send.getNow(false)));
+                return results;
+            });
+    }
+    
+    private void broadcastFromPrompt(String msg) {
+        if (peers.size() == 0) {
+            System.out.println("❌ No peers connected. Use /connect first");
+            return;
+        }
+        broadcast(msg).thenAccept(results -> {
+            long delivered = results.values().stream().filter(ok -> ok).count();
+            history.add("Me → all (" + delivered + "/" + results.size() + " peers): " + msg);
+            System.out.println("📤 Broadcast to " + delivered + "/" + results.size() + " peers: " + msg);
+            results.forEach((peerId, ok) -> {
+                if (!ok) {
+                    System.out.println("   ❌ " + peerId);
+                }
+            });
+        });
+    }
+    
+    private void gossipFromPrompt(String msg) {
+        int handedTo = gossip.publish(username + ": " + msg);
+        if (handedTo == 0) {
+            System.out.println("❌ No peers connected. Use /connect first");
+            return;
+        }
+        history.add("Me → gossip: " + msg);
+        System.out.println("📤 Gossiping via " + handedTo + " peers: " + msg);
+    }
+    
+    /**
+     * Run headless: connect to the given peers, generate load as configured
+     * and print a summary, then exit (see LoadGenerator)
+     */
+    public void runLoad(LoadGenerator.Options options) {
+        LoadGenerator generator = new LoadGenerator(options);
+        receiver.getDispatcher().register(Frame.MESSAGE, generator::onMessage);
+        
+        Thread receiverThread = new Thread(receiver);
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        
+        for (String address : options.peers) {
+            int colon = address.lastIndexOf(':');
+            try {
+                connectToPeer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            } catch (RuntimeException e) {
+                System.out.println("❌ Invalid peer address: " + address);
+            }
+        }
+        
+        generator.run(new ArrayList<>(peers.getAllPeers()));
+        
+        if (outbox != null) {
+            outbox.close();
+        }
+        if (sync != null) {
+            sync.close();
+        }
+        if (files != null) {
+            files.close();
         }
+        heartbeat.close();
+        pex.close();
+        delivery.close();
+        Sender.shutdown();
+        history.close();
     }
     
     public static void main(String[] args) {
+        if (args.length > 0) {
+            runHeadless(args);
+            return;
+        }
+        
         Scanner sc = new Scanner(System.in);
         
         System.out.println("🚀 Starting P2P Chat Node...");
@@ -159,6 +591,28 @@ public class Node {
         Node node = new Node(name, port);
         node.start();
     }
+    
+    private static void runHeadless(String[] args) {
+        LoadGenerator.Options options;
+        try {
+            options = LoadGenerator.Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println("❌ " + e.getMessage());
+            LoadGenerator.usage();
+            System.exit(2);
+            return;
+        }
+        // Load tests on one box all come from 127.0.0.1, which the
+        // per-address receive limit would otherwise throttle
+        if (System.getProperty("p2p.receiver.rate") == null) {
+            System.setProperty("p2p.receiver.rate", "1e9");
+            System.setProperty("p2p.receiver.burst", "1e9");
+        }
+        
+        Node node = new Node(options.name, options.port);
+        node.runLoad(options);
+        System.exit(0);
+    }
 }
 
 
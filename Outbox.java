@@ -0,0 +1,690 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Durable store-and-forward queue for outgoing chat messages.
+ *
+ * Every message is appended to its peer's file in chat_outbox_<port>/ before
+ * send() returns, so nothing is lost while a peer is offline or across a
+ * restart. One background thread hands each peer's backlog to the sender in
+ * batches (one write per batch); a failed batch is retried with exponential
+ * backoff, and retryNow() skips the wait when we hear the peer is back.
+ *
+ * A message only counts as delivered once the peer acknowledges it (see
+ * Delivery for the receiving side). Messages get a sequence number per peer
+ * and session, and up to window of them may be unacknowledged at a time, so
+ * throughput is set by the window and not by one round trip per message.
+ * An unacknowledged message is resent when its retransmission timeout
+ * (derived from the measured round-trip time) runs out, or at once when a
+ * selective ack shows that later messages arrived but it did not.
+ *
+ * Sessions are numbered by a counter in chat_outbox_<port>/session, raised
+ * and saved on every start, so they only go up however the clock moves. If
+ * the counter is lost, the peer's ack names the later session it has seen
+ * and we move past it.
+ *
+ * File records (big endian, strings as int length + UTF-8), appended only:
+ *   'P' ip, int port                  peer, first record of the file
+ *   'M' long id, long time, text      message queued
+ *   'D' long id                       message acknowledged by the peer
+ * A file whose messages are all delivered is truncated back to its 'P' record.
+ */
+public class Outbox {
+    public enum State { QUEUED, SENDING, SENT, RETRYING, DELIVERED }
+
+    private static final int RECENT_LIMIT = 1000;
+    private static final long COMPACT_SIZE = 64 * 1024;
+    private static final long MIN_RTO_MILLIS = 200;
+    private static final String SESSION_FILE = "session";
+
+    /**
+     * One queued message and its delivery state
+     */
+    public static class Message {
+        public final long id;
+        public final String peerId;
+        public final long createdAt;
+        public final String text;
+        private final CompletableFuture<Void> delivered = new CompletableFuture<>();
+        private volatile State state = State.QUEUED;
+        private volatile int attempts;
+        private volatile long deliveredAt;
+        // Send window state, guarded by the PeerQueue
+        private long seq;
+        private long sentAt;
+        private boolean sacked;
+        // Written to the peer's connection at least once
+        private boolean written;
+
+        Message(long id, String peerId, long createdAt, String text) {
+            this.id = id;
+            this.peerId = peerId;
+            this.createdAt = createdAt;
+            this.text = text;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getDeliveredAt() {
+            return deliveredAt;
+        }
+
+        /**
+         * Completes once the peer has acknowledged the message
+         */
+        public CompletableFuture<Void> whenDelivered() {
+            return delivered;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + id + " → " + peerId + " [" + state + (attempts > 1 ? ", " + attempts + " attempts" : "") + "] " + text;
+        }
+    }
+
+    /**
+     * Backlog, file, send window and retry state of one peer, all guarded by the PeerQueue itself
+     */
+    private static class PeerQueue {
+        final Peer peer;
+        final Path path;
+        final FileChannel channel;
+        // Not sent yet in this session
+        final ArrayDeque<Message> pending = new ArrayDeque<>();
+        // Sent and waiting for an ack, by sequence number
+        final TreeMap<Long, Message> unacked = new TreeMap<>();
+        // Sequence numbers restart in every session, so the peer can tell runs apart
+        long session;
+        long nextSeq = 1;
+        long srtt = -1;
+        long rttvar;
+        long rto;
+        boolean inFlight;
+        int failures;
+        long nextAttemptAt;
+
+        PeerQueue(Peer peer, Path path, FileChannel channel, long session, long rto) {
+            this.peer = peer;
+            this.path = path;
+            this.channel = channel;
+            this.session = session;
+            this.rto = rto;
+        }
+    }
+
+    private static final LongAdder enqueued = Metrics.counter("outbox.enqueued");
+    private static final LongAdder delivered = Metrics.counter("outbox.delivered");
+    private static final LongAdder retries = Metrics.counter("outbox.retries");
+    private static final LongAdder retransmitted = Metrics.counter("outbox.retransmitted");
+
+    private final Path dir;
+    private final int batchSize;
+    private final int window;
+    private final long retryMillis;
+    private final long maxRetryMillis;
+    private final boolean fsync;
+    private final long session;
+    private final ConcurrentHashMap<String, PeerQueue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Message> messages = new ConcurrentHashMap<>();
+    private final Map<Long, Message> recent = Collections.synchronizedMap(new LinkedHashMap<Long, Message>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Message> eldest) {
+            return size() > RECENT_LIMIT;
+        }
+    });
+    private final ExecutorService senders = Threads.newPerTaskExecutor("outbox-send");
+    private final Thread worker;
+    private volatile boolean closed;
+
+    /**
+     * Outbox in chat_outbox_<port>/, configured by -Dp2p.outbox.batch (64),
+     * -Dp2p.outbox.window (256), -Dp2p.outbox.retryMillis (500),
+     * -Dp2p.outbox.maxRetryMillis (30000) and -Dp2p.outbox.fsync (false)
+     */
+    public Outbox(int port) throws IOException {
+        this("chat_outbox_" + port,
+             Integer.getInteger("p2p.outbox.batch", 64),
+             Integer.getInteger("p2p.outbox.window", 256),
+             Long.getLong("p2p.outbox.retryMillis", 500),
+             Long.getLong("p2p.outbox.maxRetryMillis", 30_000),
+             Boolean.getBoolean("p2p.outbox.fsync"));
+    }
+
+    public Outbox(String directory, int batchSize, int window, long retryMillis, long maxRetryMillis,
+                  boolean fsync) throws IOException {
+        this.dir = Paths.get(directory);
+        this.batchSize = Math.max(1, batchSize);
+        this.window = Math.max(1, window);
+        this.retryMillis = Math.max(1, retryMillis);
+        this.maxRetryMillis = Math.max(this.retryMillis, maxRetryMillis);
+        this.fsync = fsync;
+        Files.createDirectories(dir);
+        this.session = nextSession(0);
+        recover();
+        Metrics.gauge("outbox.pending", messages::size);
+
+        this.worker = new Thread(this::runLoop, "outbox");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue a message for a peer. Returns once it is stored; delivery happens
+     * in the background (see Message.whenDelivered()).
+     */
+    public Message send(Peer peer, String text) throws IOException {
+        Message message = new Message(Sender.nextMessageId(), peer.getId(), System.currentTimeMillis(), text);
+        PeerQueue queue = queueFor(peer);
+        synchronized (queue) {
+            write(queue, record('M', message.id, message.createdAt, message.text));
+            messages.put(message.id, message);
+            queue.pending.add(message);
+        }
+        enqueued.increment();
+        wakeUp();
+        return message;
+    }
+
+    /**
+     * Retry a peer's backlog now instead of waiting out its backoff
+     * (e.g. because the peer just connected to us). Unacknowledged messages
+     * are resent too, in case the peer restarted and lost them.
+     */
+    public void retryNow(String peerId) {
+        PeerQueue queue = queues.get(peerId);
+        if (queue != null) {
+            synchronized (queue) {
+                queue.nextAttemptAt = 0;
+                for (Message message : queue.unacked.values()) {
+                    message.sacked = false;
+                    message.sentAt = 0;
+                }
+            }
+            wakeUp();
+        }
+    }
+
+    /**
+     * Handler for ACK frames (register with the Dispatcher): everything up to
+     * the cumulative sequence number is delivered; selectively acked messages
+     * are not resent, and the gaps below them are resent at once
+     */
+    public void onAck(Frame frame, InetSocketAddress remote) {
+        Peer from = Dispatcher.replyPeer(frame, remote);
+        PeerQueue queue = from == null ? null : queues.get(from.getId());
+        if (queue == null) {
+            return;
+        }
+        List<Message> acked = new ArrayList<>();
+        synchronized (queue) {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(frame.getPayload());
+                long session = in.getLong();
+                if (session > queue.session) {
+                    // The peer has seen a later session of ours (our counter was lost): move past it, resend all
+                    queue.session = nextSession(session);
+                    queue.nextAttemptAt = 0;
+                    for (Message message : queue.unacked.values()) {
+                        message.sacked = false;
+                        message.sentAt = 0;
+                    }
+                    wakeUp();
+                    return;
+                }
+                if (session != queue.session) {
+                    return;
+                }
+                long cumulative = in.getLong();
+                long now = System.currentTimeMillis();
+                long sample = -1;
+                while (!queue.unacked.isEmpty() && queue.unacked.firstKey() <= cumulative) {
+                    Message message = queue.unacked.pollFirstEntry().getValue();
+                    // Karn: a resent message's ack could be for any of its copies
+                    if (message.attempts == 1 && message.sentAt > 0) {
+                        sample = now - message.sentAt;
+                    }
+                    message.state = State.DELIVERED;
+                    message.deliveredAt = now;
+                    acked.add(message);
+                }
+                long highest = cumulative;
+                int n = in.getShort() & 0xFFFF;
+                for (int i = 0; i < n; i++) {
+                    long first = in.getLong();
+                    long last = in.getLong();
+                    if (first <= last) {
+                        for (Message message : queue.unacked.subMap(first, true, last, true).values()) {
+                            message.sacked = true;
+                        }
+                        highest = Math.max(highest, last);
+                    }
+                }
+                for (Message message : queue.unacked.headMap(highest).values()) {
+                    if (!message.sacked && message.sentAt > 0 && now - message.sentAt > Math.max(1, queue.srtt)) {
+                        message.sentAt = 0;
+                    }
+                }
+                if (sample >= 0) {
+                    updateRto(queue, sample);
+                }
+            } catch (BufferUnderflowException e) {
+                System.err.println("[Outbox] Bad ack from " + from.getId());
+            } catch (IOException e) {
+                System.err.println("[Outbox] Cannot save session: " + e.getMessage());
+            }
+            if (!acked.isEmpty()) {
+                queue.failures = 0;
+                markDelivered(queue, acked);
+            }
+        }
+
+        for (Message message : acked) {
+            messages.remove(message.id);
+            recent.put(message.id, message);
+            message.delivered.complete(null);
+        }
+        delivered.add(acked.size());
+        wakeUp();
+    }
+
+    /**
+     * A message by id, while queued or among the recently delivered ones
+     */
+    public Message getMessage(long id) {
+        Message message = messages.get(id);
+        return message != null ? message : recent.get(id);
+    }
+
+    /**
+     * Messages still waiting for delivery, per peer id
+     */
+    public Map<String, List<Message>> getPending() {
+        Map<String, List<Message>> result = new TreeMap<>();
+        for (PeerQueue queue : queues.values()) {
+            synchronized (queue) {
+                if (!queue.unacked.isEmpty() || !queue.pending.isEmpty()) {
+                    List<Message> list = new ArrayList<>(queue.unacked.values());
+                    list.addAll(queue.pending);
+                    result.put(queue.peer.getId(), list);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Milliseconds until the next attempt for a peer, 0 if due now
+     */
+    public long getRetryDelay(String peerId) {
+        PeerQueue queue = queues.get(peerId);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return Math.max(0, queue.nextAttemptAt - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Print the backlog per peer (the /outbox command)
+     */
+    public void print() {
+        Map<String, List<Message>> pending = getPending();
+        System.out.println("\n📮 Outbox: " + messages.size() + " pending");
+        for (Map.Entry<String, List<Message>> entry : pending.entrySet()) {
+            long delay = getRetryDelay(entry.getKey());
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue().size() + " queued" +
+                               (delay > 0 ? ", next retry in " + (delay + 999) / 1000 + "s" : ""));
+            for (Message message : entry.getValue().subList(0, Math.min(5, entry.getValue().size()))) {
+                System.out.println("    " + message);
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        wakeUp();
+        senders.shutdown();
+        for (PeerQueue queue : queues.values()) {
+            synchronized (queue) {
+                try {
+                    queue.channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private PeerQueue queueFor(Peer peer) throws IOException {
+        PeerQueue queue = queues.get(peer.getId());
+        if (queue != null) {
+            return queue;
+        }
+        synchronized (queues) {
+            queue = queues.get(peer.getId());
+            if (queue == null) {
+                Path path = dir.resolve(peer.getId().replaceAll("[^A-Za-z0-9.-]", "_") + ".outbox");
+                queue = new PeerQueue(peer, path, open(path), session, retryMillis);
+                write(queue, peerRecord(peer));
+                queues.put(peer.getId(), queue);
+            }
+            return queue;
+        }
+    }
+
+    private void wakeUp() {
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Start a batch for every peer that is due, then sleep until the next one is
+     */
+    private void runLoop() {
+        while (!closed) {
+            long now = System.currentTimeMillis();
+            long nextWake = Long.MAX_VALUE;
+            for (PeerQueue queue : queues.values()) {
+                List<Message> batch;
+                long base;
+                synchronized (queue) {
+                    if (queue.inFlight || (queue.pending.isEmpty() && queue.unacked.isEmpty())) {
+                        continue;
+                    }
+                    if (queue.nextAttemptAt > now) {
+                        nextWake = Math.min(nextWake, queue.nextAttemptAt);
+                        continue;
+                    }
+                    batch = nextBatch(queue, now);
+                    for (Message message : queue.unacked.values()) {
+                        if (!message.sacked && message.sentAt > 0) {
+                            nextWake = Math.min(nextWake, message.sentAt + queue.rto);
+                        }
+                    }
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                    base = queue.unacked.firstKey();
+                    queue.inFlight = true;
+                }
+                PeerQueue target = queue;
+                List<Message> sending = batch;
+                long sendingBase = base;
+                try {
+                    senders.execute(() -> deliver(target, sending, sendingBase));
+                } catch (RejectedExecutionException e) {
+                    return; // Closing
+                }
+            }
+
+            synchronized (this) {
+                try {
+                    if (!closed && nextWake == Long.MAX_VALUE) {
+                        wait(1000);
+                    } else if (!closed) {
+                        wait(Math.max(1, nextWake - System.currentTimeMillis()));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages to write next to a peer: overdue ones first, then new ones
+     * as far as the window allows (called holding the queue)
+     */
+    private List<Message> nextBatch(PeerQueue queue, long now) {
+        List<Message> batch = new ArrayList<>();
+        int resent = 0;
+        boolean timedOut = false;
+        for (Message message : queue.unacked.values()) {
+            if (batch.size() == batchSize) {
+                break;
+            }
+            if (message.sacked) {
+                continue;
+            }
+            if (message.sentAt == 0 || now - message.sentAt >= queue.rto) {
+                timedOut |= message.sentAt != 0;
+                if (message.written) {
+                    resent++;
+                }
+                batch.add(message);
+            }
+        }
+        retransmitted.add(resent);
+        if (timedOut) {
+            // Back off, and stop trusting selective acks: the peer may have dropped its reorder buffer
+            queue.rto = Math.min(maxRetryMillis, queue.rto * 2);
+            for (Message message : queue.unacked.values()) {
+                message.sacked = false;
+            }
+        }
+        while (batch.size() < batchSize && queue.unacked.size() < window && !queue.pending.isEmpty()) {
+            Message message = queue.pending.poll();
+            message.seq = queue.nextSeq++;
+            queue.unacked.put(message.seq, message);
+            batch.add(message);
+        }
+        for (Message message : batch) {
+            message.sentAt = now;
+            message.state = State.SENDING;
+            message.attempts++;
+        }
+        return batch;
+    }
+
+    /**
+     * Write one batch and record the outcome (runs on a sender thread).
+     * Delivery is only recorded when the peer acks (see onAck).
+     */
+    private void deliver(PeerQueue queue, List<Message> batch, long base) {
+        List<Frame> frames = new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            frames.add(new Frame(Frame.SEQ_MESSAGE, (byte) 0, message.id, message.createdAt, Sender.getLocalId(),
+                                 Delivery.payload(queue.session, message.seq, base, message.text)));
+        }
+        boolean ok = Sender.sendBatch(queue.peer, frames);
+
+        synchronized (queue) {
+            queue.inFlight = false;
+            if (ok) {
+                queue.nextAttemptAt = 0;
+                for (Message message : batch) {
+                    message.written = true;
+                    if (message.state == State.SENDING) {
+                        message.state = State.SENT;
+                    }
+                }
+            } else {
+                // Exponential backoff with jitter, capped at maxRetryMillis
+                queue.failures++;
+                long backoff = Math.min(maxRetryMillis, retryMillis << Math.min(20, queue.failures - 1));
+                backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                queue.nextAttemptAt = System.currentTimeMillis() + backoff;
+                for (Message message : batch) {
+                    if (message.state == State.SENDING) {
+                        message.state = State.RETRYING;
+                        message.sentAt = 0;
+                    }
+                }
+                retries.increment();
+            }
+        }
+        wakeUp();
+    }
+
+    /**
+     * Record acked messages in the file (called holding the queue)
+     */
+    private void markDelivered(PeerQueue queue, List<Message> acked) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Message message : acked) {
+            records.writeBytes(record('D', message.id, 0, null));
+        }
+        try {
+            write(queue, records.toByteArray());
+            if (queue.pending.isEmpty() && queue.unacked.isEmpty() && queue.channel.size() > COMPACT_SIZE) {
+                // Everything delivered: start the file over
+                queue.channel.truncate(0);
+                write(queue, peerRecord(queue.peer));
+            }
+        } catch (IOException e) {
+            System.err.println("[Outbox] Cannot update " + queue.path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retransmission timeout from smoothed round-trip time and its variance (as in TCP)
+     */
+    private void updateRto(PeerQueue queue, long sample) {
+        if (queue.srtt < 0) {
+            queue.srtt = sample;
+            queue.rttvar = sample / 2;
+        } else {
+            queue.rttvar = (3 * queue.rttvar + Math.abs(queue.srtt - sample)) / 4;
+            queue.srtt = (7 * queue.srtt + sample) / 8;
+        }
+        queue.rto = Math.min(maxRetryMillis, Math.max(MIN_RTO_MILLIS, queue.srtt + 4 * queue.rttvar));
+    }
+
+    /**
+     * Raise the saved session counter above both its value and the given one
+     * @return the new session number, saved before it is used
+     */
+    private synchronized long nextSession(long above) throws IOException {
+        Path file = dir.resolve(SESSION_FILE);
+        long saved = 0;
+        if (Files.exists(file)) {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length == 8) {
+                saved = ByteBuffer.wrap(bytes).getLong();
+            }
+        }
+        long next = Math.max(saved, above) + 1;
+        Path temp = dir.resolve(SESSION_FILE + ".tmp");
+        Files.write(temp, ByteBuffer.allocate(8).putLong(next).array());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return next;
+    }
+
+    /**
+     * Reload undelivered messages from the outbox files
+     */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(p -> p.toString().endsWith(".outbox")).forEach(files::add);
+        }
+        for (Path path : files) {
+            // Files are compacted once delivered, so they are small enough to read whole
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            Peer peer = null;
+            LinkedHashMap<Long, Message> pending = new LinkedHashMap<>();
+            int validLength = 0;
+            try {
+                while (in.hasRemaining()) {
+                    byte type = in.get();
+                    if (type == 'P') {
+                        String ip = readString(in);
+                        peer = new Peer(ip, in.getInt());
+                    } else if (type == 'M' && peer != null) {
+                        long id = in.getLong();
+                        long time = in.getLong();
+                        pending.put(id, new Message(id, peer.getId(), time, readString(in)));
+                    } else if (type == 'D') {
+                        pending.remove(in.getLong());
+                    } else {
+                        break; // Corrupt
+                    }
+                    validLength = in.position();
+                }
+            } catch (BufferUnderflowException e) {
+                // Torn last record: cut off below
+            }
+            if (peer == null) {
+                Files.delete(path);
+                continue;
+            }
+
+            FileChannel channel = open(path);
+            PeerQueue queue = new PeerQueue(peer, path, channel, session, retryMillis);
+            if (pending.isEmpty()) {
+                channel.truncate(0);
+                write(queue, peerRecord(peer));
+            } else {
+                channel.truncate(validLength);
+            }
+            for (Message message : pending.values()) {
+                queue.pending.add(message);
+                messages.put(message.id, message);
+            }
+            queues.put(peer.getId(), queue);
+        }
+        if (!messages.isEmpty()) {
+            System.out.println("[Outbox] " + messages.size() + " undelivered messages will be retried");
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String text = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void write(PeerQueue queue, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long pos = queue.channel.size();
+        while (buffer.hasRemaining()) {
+            pos += queue.channel.write(buffer, pos);
+        }
+        if (fsync) {
+            queue.channel.force(false);
+        }
+    }
+
+    private static byte[] peerRecord(Peer peer) {
+        byte[] ip = peer.getIp().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 4 + ip.length + 4)
+            .put((byte) 'P').putInt(ip.length).put(ip).putInt(peer.getPort()).array();
+    }
+
+    /**
+     * 'M' record when text is given, otherwise a 'D' record
+     */
+    private static byte[] record(char type, long id, long time, String text) {
+        if (text == null) {
+            return ByteBuffer.allocate(1 + 8).put((byte) type).putLong(id).array();
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 8 + 8 + 4 + bytes.length)
+            .put((byte) type).putLong(id).putLong(time).putInt(bytes.length).put(bytes).array();
+    }
+}
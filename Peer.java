@@ -1,7 +1,15 @@
 public class Peer {
+    /**
+     * Liveness as seen by the heartbeat failure detector (see Heartbeat)
+     */
+    public enum State { UP, SUSPECT, DOWN }
+
     private final String id;
     private String ip;
     private int port;
+    private volatile String username;
+    private volatile State state = State.UP;
+    private volatile long stateSince = System.currentTimeMillis();
 
     /**
      * Constructor that derives id from ip and port
@@ -33,6 +41,35 @@ public class Peer {
         return port;
     }
 
+    /**
+     * Username of the node behind this peer, if known (may be null)
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Time (epoch ms) of the last state change
+     */
+    public long getStateSince() {
+        return stateSince;
+    }
+
+    public void setState(State state) {
+        if (this.state != state) {
+            this.state = state;
+            this.stateSince = System.currentTimeMillis();
+        }
+    }
+
     public void setIp(String ip) {
         this.ip = ip;
     }
@@ -0,0 +1,238 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Peer exchange (PEX): nodes tell each other about the peers they know, so
+ * one /connect to a seed is enough to join a mesh.
+ *
+ * - A node that opens a connection to us (its HELLO) is added to our peers,
+ *   so connections work both ways without a second /connect.
+ * - After connecting, a node sends a PEX frame with a random sample of its
+ *   peers and asks for one back. New addresses from a sample are dialled in
+ *   parallel by a fixed pool of connector threads; each new peer in turn
+ *   answers with its own sample, so discovery fans out in a few round trips.
+ * - Dialling stops once maxPeers are known; samples are capped at sampleSize.
+ * - Loopback and link-local addresses only mean something on this host, so
+ *   they are left out of samples for peers on other hosts, and ignored in
+ *   samples that come from other hosts.
+ *
+ * PEX payload: byte wantReply, short n, n x (short length + UTF-8 ip, int port)
+ *
+ * Settings: -Dp2p.pex.sample (32), -Dp2p.pex.maxPeers (128), -Dp2p.pex.connectors (32)
+ */
+public class PeerExchange implements Closeable {
+    private static final LongAdder discovered = Metrics.counter("pex.discovered");
+    private static final LongAdder dialFailed = Metrics.counter("pex.dial.failed");
+
+    private final Peers peers;
+    private final int localPort;
+    private final int sampleSize;
+    private final int maxPeers;
+    private final ExecutorService connectors;
+    private final Set<String> dialling = ConcurrentHashMap.newKeySet();
+    private final Set<InetAddress> localAddresses = localAddresses();
+
+    public PeerExchange(Peers peers, int localPort) {
+        this(peers, localPort,
+             Integer.getInteger("p2p.pex.sample", 32),
+             Integer.getInteger("p2p.pex.maxPeers", 128),
+             Integer.getInteger("p2p.pex.connectors", 32));
+    }
+
+    public PeerExchange(Peers peers, int localPort, int sampleSize, int maxPeers, int connectors) {
+        this.peers = peers;
+        this.localPort = localPort;
+        this.sampleSize = sampleSize;
+        this.maxPeers = maxPeers;
+        this.connectors = Executors.newFixedThreadPool(connectors, Threads.daemonFactory("pex-connect"));
+        Metrics.gauge("pex.dialling", dialling::size);
+    }
+
+    /**
+     * Send our sample to a peer we just connected to and ask for theirs
+     */
+    public void introduce(Peer peer) {
+        Sender.sendFrameAsync(peer, pexFrame(peer, true));
+    }
+
+    /**
+     * Reverse registration: a node opened a connection to us
+     * @return the registered peer, or null if the sender id has no port
+     */
+    public Peer onHello(Frame frame, InetSocketAddress remote) {
+        Peer from = Dispatcher.replyPeer(frame, remote);
+        if (from == null) {
+            return null;
+        }
+        Peer known = peers.getPeer(from.getId());
+        if (known != null) {
+            if (known.getUsername() == null) {
+                setUsername(known, frame.getSenderId());
+            }
+            return known;
+        }
+        if (peers.addPeer(from)) {
+            setUsername(from, frame.getSenderId());
+            System.out.println("\n🤝 " + from.getId() + " connected to us");
+        }
+        return peers.getPeer(from.getId());
+    }
+
+    /**
+     * Handler for PEX frames (register with the Dispatcher)
+     */
+    public void onFrame(Frame frame, InetSocketAddress remote) {
+        Peer from = Dispatcher.replyPeer(frame, remote);
+        if (from == null) {
+            return;
+        }
+        Peer known = peers.getPeer(from.getId());
+        boolean fromThisHost = isHostLocal(from.getIp());
+        ByteBuffer in = ByteBuffer.wrap(frame.getPayload());
+        try {
+            boolean wantReply = in.get() != 0;
+            int n = in.getShort() & 0xFFFF;
+            for (int i = 0; i < n; i++) {
+                byte[] ip = new byte[in.getShort() & 0xFFFF];
+                in.get(ip);
+                int port = in.getInt();
+                String address = new String(ip, StandardCharsets.UTF_8);
+                if (fromThisHost || !isHostLocal(address)) {
+                    dial(address, port);
+                }
+            }
+            if (wantReply) {
+                Sender.sendFrameAsync(known != null ? known : from, pexFrame(from, false));
+            }
+        } catch (BufferUnderflowException e) {
+            System.err.println("[PEX Error] Bad sample from " + from.getId());
+        }
+    }
+
+    @Override
+    public void close() {
+        connectors.shutdownNow();
+    }
+
+    /**
+     * Connect to an address from a sample in the background, unless it is us,
+     * already known, already being dialled, or we have enough peers
+     */
+    private void dial(String ip, int port) {
+        String id = ip + ":" + port;
+        if (port <= 0 || port > 65535 || isSelf(ip, port) || peers.getPeer(id) != null
+                || peers.size() + dialling.size() >= maxPeers || !dialling.add(id)) {
+            return;
+        }
+        try {
+            connectors.execute(() -> {
+                try {
+                    Peer peer = new Peer(ip, port);
+                    // Opening the connection sends our HELLO, so they register us too
+                    Sender.getPool().send(peer, pexFrame(peer, true));
+                    if (peers.addPeer(peer)) {
+                        discovered.increment();
+                        System.out.println("\n🔗 Discovered " + id);
+                    }
+                } catch (IOException e) {
+                    dialFailed.increment();
+                } finally {
+                    dialling.remove(id);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            dialling.remove(id);
+        }
+    }
+
+    /**
+     * Our sample for the given peer: up to sampleSize random UP peers other
+     * than itself (only addresses it can reach, if it is on another host)
+     */
+    private Frame pexFrame(Peer to, boolean wantReply) {
+        List<Peer> sample = new ArrayList<>(sampleSize);
+        Random random = ThreadLocalRandom.current();
+        boolean toThisHost = isHostLocal(to.getIp());
+        int seen = 0;
+        for (Peer peer : peers.getAllPeers()) {
+            if (peer.getState() != Peer.State.UP || peer.getId().equals(to.getId())
+                    || (!toThisHost && isHostLocal(peer.getIp()))) {
+                continue;
+            }
+            if (sample.size() < sampleSize) {
+                sample.add(peer);
+            } else {
+                int j = random.nextInt(seen + 1);
+                if (j < sampleSize) {
+                    sample.set(j, peer);
+                }
+            }
+            seen++;
+        }
+
+        int size = 1 + 2;
+        List<byte[]> ips = new ArrayList<>(sample.size());
+        for (Peer peer : sample) {
+            byte[] ip = peer.getIp().getBytes(StandardCharsets.UTF_8);
+            ips.add(ip);
+            size += 2 + ip.length + 4;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.put((byte) (wantReply ? 1 : 0)).putShort((short) sample.size());
+        for (int i = 0; i < sample.size(); i++) {
+            payload.putShort((short) ips.get(i).length).put(ips.get(i)).putInt(sample.get(i).getPort());
+        }
+        return new Frame(Frame.PEX, (byte) 0, Sender.nextMessageId(), System.currentTimeMillis(),
+                         Sender.getLocalId(), payload.array());
+    }
+
+    private boolean isSelf(String ip, int port) {
+        if (port != localPort) {
+            return false;
+        }
+        try {
+            InetAddress address = InetAddress.getByName(ip);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || localAddresses.contains(address);
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether an address is only meaningful on this host (loopback or link-local)
+     */
+    private static boolean isHostLocal(String ip) {
+        try {
+            InetAddress address = InetAddress.getByName(ip);
+            return address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isAnyLocalAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private void setUsername(Peer peer, String senderId) {
+        int at = senderId.lastIndexOf('@');
+        if (at > 0) {
+            peers.setUsername(peer, senderId.substring(0, at));
+        }
+    }
+
+    private static Set<InetAddress> localAddresses() {
+        Set<InetAddress> result = new HashSet<>();
+        try {
+            for (NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                result.addAll(Collections.list(nic.getInetAddresses()));
+            }
+        } catch (SocketException e) {
+            // Loopback is still recognised
+        }
+        return result;
+    }
+}
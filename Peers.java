@@ -1,46 +1,121 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Thread-safe peer registry.
+ * Peers are indexed by id, with secondary lookups by username and by
+ * address; all lookups are O(1) and safe to use from any thread.
+ */
 public class Peers {
-    private List<Peer> peerList;
+    private final ConcurrentHashMap<String, Peer> byId;
+    private final ConcurrentHashMap<String, Peer> byUsername;
+    private final ConcurrentHashMap<InetSocketAddress, Peer> byAddress;
+    private final Collection<Peer> view;
+
+    private static final LongAdder lookups = Metrics.counter("peers.lookups");
+    private static final LongAdder misses = Metrics.counter("peers.lookups.missed");
 
     public Peers() {
-        this.peerList = new ArrayList<>();
+        this.byId = new ConcurrentHashMap<>();
+        this.byUsername = new ConcurrentHashMap<>();
+        this.byAddress = new ConcurrentHashMap<>();
+        this.view = Collections.unmodifiableCollection(byId.values());
+        Metrics.gauge("peers.count", byId::size);
     }
 
-    public void addPeer(Peer peer) {
-        peerList.add(peer);
+    /**
+     * Add a peer unless one with the same id is already known
+     * @return true if the peer was added, false if it was already there
+     */
+    public boolean addPeer(Peer peer) {
+        if (byId.putIfAbsent(peer.getId(), peer) != null) {
+            return false;
+        }
+        byAddress.putIfAbsent(addressOf(peer.getIp(), peer.getPort()), peer);
+        if (peer.getUsername() != null) {
+            byUsername.putIfAbsent(peer.getUsername(), peer);
+        }
+        return true;
     }
 
     public Peer getPeer(String id) {
-        for (Peer p : peerList) {
-            if (p.getId().equals(id)) {
-                return p;
-            }
+        return counted(byId.get(id));
+    }
+
+    public Peer getPeerByUsername(String username) {
+        return counted(byUsername.get(username));
+    }
+
+    public Peer getPeerByAddress(String ip, int port) {
+        return counted(byAddress.get(addressOf(ip, port)));
+    }
+
+    private static Peer counted(Peer found) {
+        lookups.increment();
+        if (found == null) {
+            misses.increment();
+        }
+        return found;
+    }
+
+    public Peer getPeerByAddress(InetSocketAddress address) {
+        return getPeerByAddress(address.getHostString(), address.getPort());
+    }
+
+    /**
+     * Record the username of a known peer so it can be found by name
+     */
+    public void setUsername(Peer peer, String username) {
+        String old = peer.getUsername();
+        if (old != null) {
+            byUsername.remove(old, peer);
+        }
+        peer.setUsername(username);
+        if (username != null) {
+            byUsername.put(username, peer);
         }
-        return null;
     }
 
     public void removePeer(String id) {
-        peerList.removeIf(p -> p.getId().equals(id));
+        Peer removed = byId.remove(id);
+        if (removed == null) {
+            return;
+        }
+        byAddress.remove(addressOf(removed.getIp(), removed.getPort()), removed);
+        if (removed.getUsername() != null) {
+            byUsername.remove(removed.getUsername(), removed);
+        }
     }
 
     public void printPeers() {
-        if (peerList.isEmpty()) {
+        if (byId.isEmpty()) {
             System.out.println("No peers connected.");
             return;
         }
         System.out.println("Connected peers:");
-        for (Peer p : peerList) {
-            System.out.println(p.getId() + " - " + p.getIp() + ":" + p.getPort());
+        for (Peer p : view) {
+            String name = p.getUsername() != null ? " [" + p.getUsername() + "]" : "";
+            String state = p.getState() == Peer.State.UP ? "" : " (" + p.getState() + ")";
+            System.out.println(p.getId() + " - " + p.getIp() + ":" + p.getPort() + name + state);
         }
     }
 
-    public List<Peer> getAllPeers() {
-        return new ArrayList<>(peerList);
+    /**
+     * Live read-only view of all peers (no copy is made)
+     */
+    public Collection<Peer> getAllPeers() {
+        return view;
     }
 
     public int size() {
-        return peerList.size();
+        return byId.size();
+    }
+
+    private static InetSocketAddress addressOf(String ip, int port) {
+        // Unresolved so that no DNS lookup happens on the hot path
+        return InetSocketAddress.createUnresolved(ip, port);
     }
-}
\ No newline at end of file
+}
@@ -1,30 +1,105 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class Receiver implements Runnable {
+    /**
+     * How inbound connections are served:
+     * THREADS - one pooled thread per connection (blocking I/O)
+     * NIO     - a few selector event loops shared by all connections
+     * VIRTUAL - one virtual thread per connection (blocking I/O, JDK 21+)
+     */
+    public enum Mode { THREADS, NIO, VIRTUAL }
+    
+    // Connection metrics, shared with NioReceiver (see /stats)
+    static final LongAdder connectionsTotal = Metrics.counter("receiver.connections.total");
+    static final LongAdder connectionsActive = Metrics.counter("receiver.connections.active");
+    static final LongAdder bytesRead = Metrics.counter("receiver.bytes");
+    
+    // Inbound connections that send nothing for this long are closed (heartbeats keep live ones busy)
+    static final int READ_TIMEOUT_MS = Integer.getInteger("p2p.receiver.readTimeoutMillis", 120_000);
+    
     private int port;
-    private MessageHistory history;
+    private Dispatcher dispatcher;
     private ServerSocket serverSocket;
-    private boolean running;
+    private volatile boolean running;
     private ExecutorService threadPool;
+    private final Mode mode;
+    private NioReceiver nioReceiver;
+    private final AdmissionControl admission;
     
     public Receiver(int port, MessageHistory history) {
+        this(port, history, modeFromProperty());
+    }
+    
+    public Receiver(int port, MessageHistory history, Mode mode) {
+        this(port, new Dispatcher(history), mode);
+    }
+    
+    public Receiver(int port, Dispatcher dispatcher, Mode mode) {
+        this(port, dispatcher, mode, new AdmissionControl(AdmissionControl.Limits.fromSystemProperties()));
+    }
+    
+    /**
+     * Receiver with explicit connection limits, rate limits and worker pool bounds
+     */
+    public Receiver(int port, Dispatcher dispatcher, Mode mode, AdmissionControl admission) {
         this.port = port;
-        this.history = history;
+        this.dispatcher = dispatcher;
         this.running = true;
-        this.threadPool = Executors.newCachedThreadPool();
+        this.mode = mode;
+        this.admission = admission;
+        if (mode == Mode.THREADS) {
+            // Bounded: a worker per admitted connection, no queue by default (see AdmissionControl)
+            ThreadPoolExecutor pool = admission.newWorkerPool();
+            this.threadPool = pool;
+            Metrics.gauge("receiver.pool.threads", pool::getPoolSize);
+            Metrics.gauge("receiver.pool.busy", pool::getActiveCount);
+            Metrics.gauge("receiver.pool.queued", () -> pool.getQueue().size());
+        } else if (mode == Mode.VIRTUAL) {
+            if (!Threads.virtualThreadsAvailable()) {
+                System.err.println("Virtual threads need JDK 21+, using daemon platform threads");
+            }
+            this.threadPool = Threads.newPerTaskExecutor("receiver");
+        }
+    }
+    
+    /**
+     * Mode can be chosen with -Dp2p.receiver=threads|nio|virtual (default: threads)
+     */
+    private static Mode modeFromProperty() {
+        String value = System.getProperty("p2p.receiver", "threads");
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown receiver mode '" + value + "', using threads");
+            return Mode.THREADS;
+        }
     }
     
     @Override
     public void run() {
+        if (mode == Mode.NIO) {
+            nioReceiver = new NioReceiver(port, dispatcher, admission);
+            nioReceiver.run();
+            return;
+        }
+        
         try {
             serverSocket = new ServerSocket(port);
             System.out.println("✅ Listening on port " + port);
             
             while (running) {
                 Socket clientSocket = serverSocket.accept();
-                threadPool.submit(new ClientHandler(clientSocket, history));
+                if (!admission.admit(clientSocket.getInetAddress())) {
+                    clientSocket.close();
+                    continue;
+                }
+                threadPool.execute(new ClientHandler(clientSocket, dispatcher, admission));
             }
             
         } catch (IOException e) {
@@ -38,6 +113,10 @@ public class Receiver implements Runnable {
     
     public void stop() {
         running = false;
+        if (nioReceiver != null) {
+            nioReceiver.stop();
+            return;
+        }
         threadPool.shutdown();
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -48,44 +127,100 @@ public class Receiver implements Runnable {
         }
     }
     
-    private static class ClientHandler implements Runnable {
+    public Mode getMode() {
+        return mode;
+    }
+    
+    /**
+     * Register handlers for extra frame types here
+     */
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+    
+    /**
+     * Show an incoming chat message and save it to history.
+     * Shared by every receiver mode and frame type so they all look the same.
+     */
+    static void showMessage(String from, String message, MessageHistory history) {
+        if (message.trim().isEmpty()) {
+            return;
+        }
+        
+        // DISPLAY MESSAGE ON SCREEN
+        System.out.println("\n" + "═".repeat(50));
+        System.out.println("📩 NEW MESSAGE");
+        System.out.println("From: " + from);
+        System.out.println("Content: " + message);
+        System.out.println("═".repeat(50));
+        
+        // Save to history
+        history.add("From " + from + ": " + message);
+    }
+    
+    private static class ClientHandler implements Runnable, Closeable {
         private Socket socket;
-        private MessageHistory history;
+        private Dispatcher dispatcher;
+        private final AdmissionControl admission;
+        private final FrameCodec codec = new FrameCodec();
+        private final AtomicBoolean closed = new AtomicBoolean();
         
-        public ClientHandler(Socket socket, MessageHistory history) {
+        public ClientHandler(Socket socket, Dispatcher dispatcher, AdmissionControl admission) {
             this.socket = socket;
-            this.history = history;
+            this.dispatcher = dispatcher;
+            this.admission = admission;
+        }
+        
+        /**
+         * Close the socket and give back its admission slot (also used when the pool drops it)
+         */
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            admission.release(socket.getInetAddress());
         }
         
         @Override
         public void run() {
+            connectionsTotal.increment();
+            connectionsActive.increment();
             try {
-                BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
-                );
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                InputStream in = socket.getInputStream();
+                InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+                ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.READ_BUFFER_SIZE);
                 
-                // Read ONE message
-                String message = reader.readLine();
-                if (message != null && !message.trim().isEmpty()) {
-                    String senderInfo = socket.getInetAddress().getHostAddress();
-                    int senderPort = socket.getPort();
-                    
-                    // DISPLAY MESSAGE ON SCREEN
-                    System.out.println("\n" + "═".repeat(50));
-                    System.out.println("📩 NEW MESSAGE");
-                    System.out.println("From: " + senderInfo + ":" + senderPort);
-                    System.out.println("Content: " + message);
-                    System.out.println("═".repeat(50));
-                    
-                    // Save to history
-                    history.add("From " + senderInfo + ":" + senderPort + ": " + message);
+                // Connections are pooled by the sender, so keep reading frames until it closes
+                int n;
+                while ((n = in.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0) {
+                    buffer.position(buffer.position() + n);
+                    bytesRead.add(n);
+                    buffer.flip();
+                    Frame frame;
+                    while ((frame = codec.decode(buffer)) != null) {
+                        // Over the rate limit: stop reading for a while, TCP pushes back on the sender
+                        long wait;
+                        while ((wait = admission.throttle(remote.getAddress())) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        dispatcher.dispatch(frame, remote);
+                    }
+                    buffer = FrameCodec.compact(buffer);
                 }
                 
-                reader.close();
-                socket.close();
-                
             } catch (IOException e) {
                 // Ignore connection errors
+            } finally {
+                close();
+                codec.close();
+                connectionsActive.decrement();
             }
         }
     }
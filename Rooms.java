@@ -0,0 +1,396 @@
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chat rooms: /join, /leave and /say.
+ *
+ * Every node tells its peers which rooms it is in (ROOM_MEMBERSHIP frames,
+ * sent on join/leave and to every peer that connects). The registry maps
+ * each room to an array of member peers sorted by id; a change replaces the
+ * array (copy-on-write), so sending to a room iterates a snapshot without
+ * locking.
+ *
+ * Small rooms get the message directly from the sender. In bigger rooms the
+ * sender hands it to at most fanout members, each responsible for relaying
+ * it to an equal slice of the rest, recursively - a relay tree, so no node
+ * uploads more than fanout copies. The slice travels with the frame, so no
+ * node needs to know the whole tree. If a relay can't be reached the next
+ * member of its slice takes over.
+ *
+ * Our own rooms are saved with MessageHistory.saveSetting and rejoined on start.
+ *
+ * ROOM_MEMBERSHIP payload: byte joined, short n, n x room
+ * ROOM_MESSAGE payload:    room, int length + UTF-8 text, short n, n x peer id to relay to
+ * (strings as short length + UTF-8; the frame keeps the origin's sender id and message id)
+ */
+public class Rooms {
+    public static final byte[] FRAME_TYPES = { Frame.ROOM_MEMBERSHIP, Frame.ROOM_MESSAGE };
+    private static final String SETTING = "rooms";
+    private static final Peer[] EMPTY = new Peer[0];
+    private static final int REMEMBERED_MESSAGES = 100_000;
+
+    private static final LongAdder relayed = Metrics.counter("rooms.relayed");
+
+    private final Peers peers;
+    private final MessageHistory history;
+    private final int fanout;
+    private final ConcurrentHashMap<String, Peer[]> members = new ConcurrentHashMap<>();
+    private final Set<String> joined = ConcurrentHashMap.newKeySet();
+    // Relays have no redundant path, so duplicates are checked exactly: origin + message id, oldest evicted
+    private final Set<String> seen = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > REMEMBERED_MESSAGES;
+        }
+    });
+    // Rooms of members the heartbeat marked DOWN, given back if they come UP again
+    private final ConcurrentHashMap<String, Set<String>> away = new ConcurrentHashMap<>();
+    // Relay sends may block on a connect, so they don't run on the receiver's threads
+    private final ExecutorService relays = Threads.newPerTaskExecutor("room-relay");
+
+    public Rooms(Peers peers, MessageHistory history) {
+        this(peers, history, Integer.getInteger("p2p.room.fanout", 4));
+    }
+
+    public Rooms(Peers peers, MessageHistory history, int fanout) {
+        this.peers = peers;
+        this.history = history;
+        this.fanout = Math.max(1, fanout);
+        String saved = history.getSetting(SETTING);
+        if (saved != null && !saved.isEmpty()) {
+            joined.addAll(Arrays.asList(saved.split(",")));
+        }
+        Metrics.gauge("rooms.joined", joined::size);
+    }
+
+    /**
+     * Room names are case-insensitive and may be written with a leading '#'
+     */
+    public static String normalize(String room) {
+        String name = room.trim().toLowerCase();
+        if (name.startsWith("#")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty() || name.length() > 64 || !name.matches("[\\p{L}\\p{N}_.-]+")) {
+            throw new IllegalArgumentException("Invalid room name: " + room);
+        }
+        return name;
+    }
+
+    /**
+     * @return false if we were already in the room
+     */
+    public boolean join(String room) {
+        if (!joined.add(room)) {
+            return false;
+        }
+        saveJoined();
+        announce(peers.getAllPeers(), true, Collections.singletonList(room));
+        return true;
+    }
+
+    /**
+     * @return false if we were not in the room
+     */
+    public boolean leave(String room) {
+        if (!joined.remove(room)) {
+            return false;
+        }
+        saveJoined();
+        announce(peers.getAllPeers(), false, Collections.singletonList(room));
+        return true;
+    }
+
+    public boolean isJoined(String room) {
+        return joined.contains(room);
+    }
+
+    /**
+     * Tell a peer that just connected which rooms we are in
+     */
+    public void introduce(Peer peer) {
+        if (!joined.isEmpty()) {
+            announce(Collections.singletonList(peer), true, new ArrayList<>(joined));
+        }
+    }
+
+    /**
+     * A member the heartbeat marked DOWN leaves its rooms, so no relay slice starts with it
+     */
+    public void memberDown(String peerId) {
+        Set<String> left = new HashSet<>();
+        for (String room : members.keySet()) {
+            members.computeIfPresent(room, (r, old) -> {
+                Peer[] updated = withoutMember(old, peerId);
+                if (updated != old) {
+                    left.add(r);
+                }
+                return updated;
+            });
+        }
+        // Peers the heartbeat removed meanwhile won't come back under their id
+        away.keySet().removeIf(id -> peers.getPeer(id) == null);
+        if (!left.isEmpty()) {
+            away.put(peerId, left);
+        }
+    }
+
+    /**
+     * A member that is UP again rejoins the rooms it was in when it went DOWN
+     */
+    public void memberUp(Peer peer) {
+        Set<String> rooms = away.remove(peer.getId());
+        if (rooms != null) {
+            for (String room : rooms) {
+                members.compute(room, (r, old) -> withMember(old, peer));
+            }
+        }
+    }
+
+    /**
+     * Send a message to everyone else in the room
+     * @return number of members it is addressed to
+     */
+    public int say(String room, String text) {
+        Peer[] snapshot = members.getOrDefault(room, EMPTY);
+        List<String> targets = new ArrayList<>(snapshot.length);
+        for (Peer peer : snapshot) {
+            targets.add(peer.getId());
+        }
+        long messageId = Sender.nextMessageId();
+        firstSeen(Sender.getLocalId(), messageId);
+        relay(room, text, messageId, Sender.getLocalId(), System.currentTimeMillis(), targets);
+        return targets.size();
+    }
+
+    /**
+     * Members of a room (snapshot, sorted by id); we are not included
+     */
+    public Peer[] getMembers(String room) {
+        return members.getOrDefault(room, EMPTY);
+    }
+
+    public void printRooms() {
+        Set<String> all = new TreeSet<>(members.keySet());
+        all.addAll(joined);
+        if (all.isEmpty()) {
+            System.out.println("No rooms. Use /join <room> to create one.");
+            return;
+        }
+        System.out.println("Rooms:");
+        for (String room : all) {
+            System.out.println("  #" + room + " - " + (getMembers(room).length + (joined.contains(room) ? 1 : 0)) +
+                               " members" + (joined.contains(room) ? " (joined)" : ""));
+        }
+    }
+
+    /**
+     * Handler for ROOM_* frames (register with the Dispatcher)
+     */
+    public void onFrame(Frame frame, InetSocketAddress remote) {
+        ByteBuffer in = ByteBuffer.wrap(frame.getPayload());
+        try {
+            if (frame.getType() == Frame.ROOM_MEMBERSHIP) {
+                onMembership(frame, remote, in);
+            } else if (frame.getType() == Frame.ROOM_MESSAGE) {
+                onMessage(frame, in);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            System.err.println("[Room Error] Bad room frame from " + frame.getSenderId());
+        }
+    }
+
+    private void onMembership(Frame frame, InetSocketAddress remote, ByteBuffer in) {
+        Peer from = Dispatcher.replyPeer(frame, remote);
+        if (from == null) {
+            return;
+        }
+        Peer known = peers.getPeer(from.getId());
+        Peer member = known != null ? known : from;
+        boolean join = in.get() != 0;
+        int n = in.getShort() & 0xFFFF;
+        for (int i = 0; i < n; i++) {
+            String room = normalize(getString(in));
+            if (join) {
+                members.compute(room, (r, old) -> withMember(old, member));
+            } else {
+                members.computeIfPresent(room, (r, old) -> withoutMember(old, member.getId()));
+            }
+        }
+    }
+
+    private void onMessage(Frame frame, ByteBuffer in) {
+        String room = normalize(getString(in));
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("bad length");
+        }
+        String text = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        List<String> targets = new ArrayList<>();
+        int n = in.getShort() & 0xFFFF;
+        for (int i = 0; i < n; i++) {
+            targets.add(getString(in));
+        }
+        if (!firstSeen(frame.getSenderId(), frame.getMessageId())) {
+            return;
+        }
+        if (joined.contains(room)) {
+            showMessage(room, frame.getSenderId(), text);
+        }
+        relay(room, text, frame.getMessageId(), frame.getSenderId(), frame.getTimestamp(), targets);
+    }
+
+    /**
+     * Deliver to the targets: directly when there are at most fanout of them,
+     * otherwise split them into fanout slices and hand each slice to its first
+     * member, which relays to the rest of it
+     */
+    private void relay(String room, String text, long messageId, String origin, long timestamp, List<String> targets) {
+        int slices = Math.min(fanout, targets.size());
+        for (int s = 0; s < slices; s++) {
+            List<String> slice = targets.subList(targets.size() * s / slices, targets.size() * (s + 1) / slices);
+            List<String> copy = new ArrayList<>(slice);
+            try {
+                relays.execute(() -> sendSlice(room, text, messageId, origin, timestamp, copy));
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send to the first reachable member of the slice, with the rest of the slice to relay to
+     */
+    private void sendSlice(String room, String text, long messageId, String origin, long timestamp, List<String> slice) {
+        for (int i = 0; i < slice.size(); i++) {
+            Peer peer = peerFor(slice.get(i));
+            if (peer == null) {
+                continue;
+            }
+            List<String> rest = slice.subList(i + 1, slice.size());
+            if (Sender.sendFrame(peer, messageFrame(room, text, messageId, origin, timestamp, rest))) {
+                relayed.increment();
+                return;
+            }
+            // Unreachable: the next member takes over its part of the tree
+        }
+    }
+
+    private Frame messageFrame(String room, String text, long messageId, String origin, long timestamp, List<String> relayTo) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> ids = new ArrayList<>(relayTo.size());
+        int size = 2 + roomBytes.length + 4 + textBytes.length + 2;
+        for (String id : relayTo) {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            ids.add(bytes);
+            size += 2 + bytes.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.putShort((short) roomBytes.length).put(roomBytes)
+               .putInt(textBytes.length).put(textBytes)
+               .putShort((short) ids.size());
+        for (byte[] id : ids) {
+            payload.putShort((short) id.length).put(id);
+        }
+        return new Frame(Frame.ROOM_MESSAGE, (byte) 0, messageId, timestamp, origin, payload.array());
+    }
+
+    private void announce(Collection<Peer> to, boolean join, List<String> rooms) {
+        int size = 1 + 2;
+        List<byte[]> names = new ArrayList<>(rooms.size());
+        for (String room : rooms) {
+            byte[] bytes = room.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            size += 2 + bytes.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.put((byte) (join ? 1 : 0)).putShort((short) names.size());
+        for (byte[] name : names) {
+            payload.putShort((short) name.length).put(name);
+        }
+        Frame frame = new Frame(Frame.ROOM_MEMBERSHIP, (byte) 0, Sender.nextMessageId(),
+                                System.currentTimeMillis(), Sender.getLocalId(), payload.array());
+        for (Peer peer : to) {
+            Sender.sendFrameAsync(peer, frame);
+        }
+    }
+
+    private void showMessage(String room, String origin, String text) {
+        System.out.println("\n💬 [#" + room + "] " + text + "  (via " + origin + ")");
+        history.add("[#" + room + "] From " + origin + ": " + text);
+    }
+
+    private boolean firstSeen(String origin, long messageId) {
+        synchronized (seen) {
+            return seen.add(origin + "#" + messageId);
+        }
+    }
+
+    private void saveJoined() {
+        history.saveSetting(SETTING, String.join(",", new TreeSet<>(joined)));
+    }
+
+    /**
+     * Registered peer for an id, or a new one for an address we only know from a relay list
+     */
+    private Peer peerFor(String id) {
+        Peer peer = peers.getPeer(id);
+        if (peer != null) {
+            return peer;
+        }
+        int colon = id.lastIndexOf(':');
+        try {
+            return new Peer(id.substring(0, colon), Integer.parseInt(id.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Peer[] withMember(Peer[] old, Peer member) {
+        if (old == null) {
+            return new Peer[] { member };
+        }
+        int pos = Arrays.binarySearch(old, member, Comparator.comparing(Peer::getId));
+        if (pos >= 0) {
+            return old;
+        }
+        pos = -pos - 1;
+        Peer[] updated = new Peer[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, pos);
+        updated[pos] = member;
+        System.arraycopy(old, pos, updated, pos + 1, old.length - pos);
+        return updated;
+    }
+
+    private static Peer[] withoutMember(Peer[] old, String id) {
+        for (int i = 0; i < old.length; i++) {
+            if (old[i].getId().equals(id)) {
+                if (old.length == 1) {
+                    return null; // Last member gone: drop the room
+                }
+                Peer[] updated = new Peer[old.length - 1];
+                System.arraycopy(old, 0, updated, 0, i);
+                System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                return updated;
+            }
+        }
+        return old;
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("bad length");
+        }
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
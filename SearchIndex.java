@@ -0,0 +1,228 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Incrementally maintained inverted index over history messages:
+ * term -> posting list of message sequence numbers (see MessageLog).
+ *
+ * Query syntax: whitespace separated terms, all of which must match (AND).
+ * A term ending in '*' is a prefix query ("ali*" matches "alice", "alias").
+ *
+ * Ids must be added in increasing order by a single writer at a time;
+ * searches may run concurrently with adds and never block.
+ */
+public class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * Growable sorted array of ids. Readers read size first, then the array,
+     * so they always see a fully written prefix.
+     */
+    private static class PostingList {
+        private volatile long[] ids = new long[4];
+        private volatile int size;
+
+        void add(long id) {
+            int n = size;
+            if (n > 0 && ids[n - 1] == id) {
+                // Term repeated in the same message
+                return;
+            }
+            if (n == ids.length) {
+                ids = Arrays.copyOf(ids, n * 2);
+            }
+            ids[n] = id;
+            size = n + 1;
+        }
+
+        long[] snapshot() {
+            int n = size;
+            return Arrays.copyOf(ids, n);
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, PostingList> terms = new ConcurrentSkipListMap<>();
+    private volatile long documents;
+    // Lowest id added, -1 while empty
+    private volatile long firstId = -1;
+
+    /**
+     * Index one message. Ids must be larger than every id added before.
+     */
+    public void add(long id, String text) {
+        for (String term : tokenize(text)) {
+            terms.computeIfAbsent(term, t -> new PostingList()).add(id);
+        }
+        if (firstId < 0) {
+            firstId = id;
+        }
+        documents++;
+    }
+
+    /**
+     * Append everything from another index whose ids are all larger than ours
+     */
+    public void addAll(SearchIndex newer) {
+        for (Map.Entry<String, PostingList> entry : newer.terms.entrySet()) {
+            PostingList target = terms.computeIfAbsent(entry.getKey(), t -> new PostingList());
+            for (long id : entry.getValue().snapshot()) {
+                target.add(id);
+            }
+        }
+        if (firstId < 0) {
+            firstId = newer.firstId;
+        }
+        documents += newer.documents;
+    }
+
+    /**
+     * Copy of this index without the ids below firstId (messages deleted from
+     * the log). Ids are sequence numbers with one message each, so the ids
+     * below firstId were firstId - (our lowest id) documents.
+     */
+    public SearchIndex from(long firstId) {
+        SearchIndex trimmed = new SearchIndex();
+        for (Map.Entry<String, PostingList> entry : terms.entrySet()) {
+            long[] ids = entry.getValue().snapshot();
+            int start = Arrays.binarySearch(ids, firstId);
+            start = start < 0 ? -start - 1 : start;
+            if (start == ids.length) {
+                continue;
+            }
+            PostingList kept = new PostingList();
+            kept.ids = Arrays.copyOfRange(ids, start, Math.max(ids.length, start + 4));
+            kept.size = ids.length - start;
+            trimmed.terms.put(entry.getKey(), kept);
+        }
+        long removed = this.firstId < 0 ? 0 : Math.max(0, firstId - this.firstId);
+        trimmed.documents = Math.max(0, documents - removed);
+        trimmed.firstId = trimmed.documents == 0 ? -1 : Math.max(firstId, this.firstId);
+        return trimmed;
+    }
+
+    /**
+     * Ids of messages matching every term of the query, in increasing order
+     */
+    public long[] search(String query) {
+        List<String> queryTerms = splitQuery(query);
+        if (queryTerms.isEmpty()) {
+            return new long[0];
+        }
+
+        List<long[]> lists = new ArrayList<>();
+        for (String term : queryTerms) {
+            long[] ids = term.endsWith("*") ? prefixIds(term.substring(0, term.length() - 1)) : exactIds(term);
+            if (ids.length == 0) {
+                return ids;
+            }
+            lists.add(ids);
+        }
+
+        // Intersect starting from the shortest list
+        lists.sort(Comparator.comparingInt(ids -> ids.length));
+        long[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    public int termCount() {
+        return terms.size();
+    }
+
+    public long documentCount() {
+        return documents;
+    }
+
+    private long[] exactIds(String term) {
+        PostingList list = terms.get(term);
+        return list == null ? new long[0] : list.snapshot();
+    }
+
+    private long[] prefixIds(String prefix) {
+        if (prefix.isEmpty()) {
+            return new long[0];
+        }
+        long[] merged = new long[0];
+        for (PostingList list : terms.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            merged = union(merged, list.snapshot());
+        }
+        return merged;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        long[] out = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            out[n++] = next;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static List<String> splitQuery(String query) {
+        List<String> result = new ArrayList<>();
+        for (String raw : query.trim().split("\\s+")) {
+            boolean prefix = raw.endsWith("*");
+            for (String term : tokenize(prefix ? raw.substring(0, raw.length() - 1) : raw)) {
+                result.add(term);
+            }
+            // A prefix marker applies to the last token of that word
+            if (prefix && !result.isEmpty()) {
+                int last = result.size() - 1;
+                result.set(last, result.get(last) + "*");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lower-case runs of letters/digits, without duplicates
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (current.length() < MAX_TERM_LENGTH) {
+                    current.append(Character.toLowerCase(c));
+                }
+            } else if (current.length() > 0) {
+                tokens.add(current.toString());
+                current.setLength(0);
+            }
+        }
+        return tokens;
+    }
+}
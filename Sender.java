@@ -1,18 +1,216 @@
 import java.io.*;
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Sender {
-    
-    public static void sendMessage(Peer peer, String message) {
+    // Connections stay open between messages instead of one socket per message
+    private static final ConnectionPool pool = new ConnectionPool();
+
+    // Outbound sends run here (virtual threads when available) instead of on the REPL thread
+    private static final ExecutorService executor = Threads.newPerTaskExecutor("sender");
+
+    // Last pending send per peer, so async sends to the same peer keep their order
+    private static final ConcurrentHashMap<String, CompletableFuture<Boolean>> lastSend = new ConcurrentHashMap<>();
+
+    // Peers the heartbeat has marked DOWN, by id, so every Peer object for them fails fast
+    private static final Set<String> downPeers = ConcurrentHashMap.newKeySet();
+
+    // Id of this node, written into every outgoing frame
+    private static volatile String localId = "";
+
+    // Message ids start at a random point so they don't repeat after a restart
+    private static final AtomicLong messageIds = new AtomicLong(ThreadLocalRandom.current().nextLong() >>> 1);
+
+    // Metrics (see /stats)
+    private static final LongAdder sent = Metrics.counter("sender.sent");
+    private static final LongAdder failed = Metrics.counter("sender.failed");
+    private static final LongAdder failedFast = Metrics.counter("sender.failed.down");
+    private static final LatencyHistogram sendLatency = Metrics.histogram("sender.send");
+
+    static {
+        Metrics.gauge("sender.connections", pool::size);
+        Metrics.gauge("sender.pending", lastSend::size);
+    }
+
+    /**
+     * Set the sender id stamped on outgoing frames (Node uses "username@port")
+     */
+    public static void setLocalId(String id) {
+        localId = id;
+    }
+
+    public static String getLocalId() {
+        return localId;
+    }
+
+    /**
+     * Record whether a peer is DOWN (called by the heartbeat on state changes)
+     */
+    public static void setDown(String peerId, boolean down) {
+        if (down) {
+            downPeers.add(peerId);
+        } else {
+            downPeers.remove(peerId);
+        }
+    }
+
+    public static long nextMessageId() {
+        return messageIds.incrementAndGet();
+    }
+
+    /**
+     * Send a chat message and wait for the write to finish
+     * @return true if the message was written to the peer's connection
+     */
+    public static boolean sendMessage(Peer peer, String message) {
+        return sendFrame(peer, Frame.message(nextMessageId(), localId, message));
+    }
+
+    /**
+     * Send any frame and wait for the write to finish
+     * @return true if the frame was written to the peer's connection
+     */
+    public static boolean sendFrame(Peer peer, Frame frame) {
+        if (isDown(peer)) {
+            return false;
+        }
+        long start = System.nanoTime();
         try {
-            Socket socket = new Socket(peer.getIp(), peer.getPort());
-            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-            writer.println(message);
-            writer.close();
-            socket.close();
+            pool.send(peer, frame);
+            sendLatency.recordSince(start);
+            sent.increment();
             // Success message is now shown in Node.java
+            return true;
+        } catch (IOException e) {
+            failed.increment();
+            System.err.println("❌ Connection failed to " + peer.getIp() + ":" + peer.getPort());
+            return false;
+        }
+    }
+
+    /**
+     * Send several frames to one peer with a single write
+     * @return true if all of them were written to the peer's connection
+     */
+    public static boolean sendBatch(Peer peer, List<Frame> frames) {
+        int size = 0;
+        for (Frame frame : frames) {
+            size += FrameCodec.encodedSize(frame);
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(size);
+        FrameCodec codec = FrameCodec.outbound();
+        for (Frame frame : frames) {
+            codec.encode(frame, encoded);
+        }
+        codec.close();
+        encoded.flip();
+        if (sendEncoded(peer, encoded)) {
+            sent.add(frames.size() - 1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send a message in the background. Messages to the same peer are still
+     * written in the order this method was called.
+     * @return future completed with the result of sendMessage
+     */
+    public static CompletableFuture<Boolean> sendAsync(Peer peer, String message) {
+        return runInOrder(peer, () -> sendMessage(peer, message));
+    }
+
+    /**
+     * Send any frame in the background, in order with other sends to that peer
+     */
+    public static CompletableFuture<Boolean> sendFrameAsync(Peer peer, Frame frame) {
+        return runInOrder(peer, () -> sendFrame(peer, frame));
+    }
+
+    /**
+     * Send one message to many peers at once. The frame is encoded a single
+     * time into a shared read-only buffer and every peer gets its own
+     * concurrent write of that buffer, so a slow or dead peer only delays
+     * its own result.
+     * @return per-peer future completed with true if the write succeeded
+     */
+    public static Map<Peer, CompletableFuture<Boolean>> broadcast(Collection<Peer> peers, String message) {
+        Frame frame = Frame.message(nextMessageId(), localId, message);
+        ByteBuffer encoded = ByteBuffer.allocateDirect(FrameCodec.encodedSize(frame));
+        FrameCodec codec = FrameCodec.outbound();
+        codec.encode(frame, encoded);
+        codec.close();
+        encoded.flip();
+        ByteBuffer shared = encoded.asReadOnlyBuffer();
+
+        Map<Peer, CompletableFuture<Boolean>> results = new LinkedHashMap<>();
+        for (Peer peer : peers) {
+            results.put(peer, runInOrder(peer, () -> sendEncoded(peer, shared)));
+        }
+        return results;
+    }
+
+    /**
+     * Write an already encoded frame (not modified, so it can be shared)
+     */
+    private static boolean sendEncoded(Peer peer, ByteBuffer encoded) {
+        if (isDown(peer)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            pool.send(peer, encoded);
+            sendLatency.recordSince(start);
+            sent.increment();
+            return true;
         } catch (IOException e) {
+            failed.increment();
             System.err.println("❌ Connection failed to " + peer.getIp() + ":" + peer.getPort());
+            return false;
+        }
+    }
+
+    /**
+     * Sends to a peer the heartbeat has marked DOWN fail at once instead of
+     * waiting for a connect timeout (the outbox keeps retrying them). Peer
+     * objects made outside the registry are checked by id.
+     */
+    private static boolean isDown(Peer peer) {
+        if (peer.getState() != Peer.State.DOWN && !downPeers.contains(peer.getId())) {
+            return false;
         }
+        failed.increment();
+        failedFast.increment();
+        return true;
+    }
+
+    /**
+     * Run a send on the executor after any earlier pending send to the same peer
+     */
+    private static CompletableFuture<Boolean> runInOrder(Peer peer, Supplier<Boolean> send) {
+        CompletableFuture<Boolean> future = lastSend.compute(peer.getId(), (id, previous) -> {
+            if (previous == null || previous.isDone()) {
+                return CompletableFuture.supplyAsync(send, executor);
+            }
+            return previous.handleAsync((ok, error) -> send.get(), executor);
+        });
+        future.whenComplete((ok, error) -> lastSend.remove(peer.getId(), future));
+        return future;
+    }
+
+    /**
+     * Close all pooled connections (called on exit)
+     */
+    public static void shutdown() {
+        executor.shutdown();
+        pool.closeAll();
+    }
+
+    public static ConnectionPool getPool() {
+        return pool;
     }
-}
\ No newline at end of file
+}
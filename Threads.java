@@ -0,0 +1,54 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small helper for creating the executors used by Receiver and Sender.
+ * Virtual threads are used when the running JDK has them (21+); on older
+ * JDKs we fall back to a cached pool of daemon platform threads.
+ */
+public final class Threads {
+    private static final Method VIRTUAL_FACTORY = findVirtualFactory();
+
+    private Threads() {
+    }
+
+    private static Method findVirtualFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * One new thread per task: a virtual thread if possible, otherwise a
+     * daemon platform thread from a cached pool named after the given prefix
+     */
+    public static ExecutorService newPerTaskExecutor(String namePrefix) {
+        if (VIRTUAL_FACTORY != null) {
+            try {
+                return (ExecutorService) VIRTUAL_FACTORY.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // Fall through to platform threads
+            }
+        }
+        return Executors.newCachedThreadPool(daemonFactory(namePrefix));
+    }
+
+    /**
+     * Thread factory for named daemon platform threads
+     */
+    public static ThreadFactory daemonFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, namePrefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Token bucket rate limiter: refills at ratePerSecond up to burst tokens.
+ * Instead of blocking, tryTake() says how long to wait for the next token,
+ * so callers can pause (sleep, or stop reading a socket) as they see fit.
+ */
+public class TokenBucket {
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, double burst) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take one token if there is one
+     * @return 0 if a token was taken, otherwise nanoseconds until one is available
+     */
+    public synchronized long tryTake() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / ratePerNano));
+    }
+}
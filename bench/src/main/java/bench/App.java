@@ -0,0 +1,163 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Access to the chat classes from the benchmarks.
+ *
+ * The application lives in the default package, which Java code in a named
+ * package cannot reference, and JMH refuses benchmarks in the default
+ * package. So the benchmarks go through these method handles instead.
+ * They are static final, so the JIT inlines them like direct calls.
+ */
+final class App {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final Class<?> PEER = load("Peer");
+    static final Class<?> PEERS = load("Peers");
+    static final Class<?> SENDER = load("Sender");
+    static final Class<?> RECEIVER = load("Receiver");
+    static final Class<?> DISPATCHER = load("Dispatcher");
+    static final Class<?> HANDLER = load("Dispatcher$Handler");
+    static final Class<?> HISTORY = load("MessageHistory");
+    static final Class<?> FRAME = load("Frame");
+
+    private static final MethodHandle NEW_PEER = constructor(PEER, String.class, int.class);
+    private static final MethodHandle PEER_ID = virtual(PEER, "getId", String.class);
+    private static final MethodHandle NEW_PEERS = constructor(PEERS);
+    private static final MethodHandle ADD_PEER = virtual(PEERS, "addPeer", boolean.class, PEER);
+    private static final MethodHandle GET_PEER = virtual(PEERS, "getPeer", PEER, String.class);
+    private static final MethodHandle GET_PEER_BY_ADDRESS = virtual(PEERS, "getPeerByAddress", PEER, String.class, int.class);
+
+    private static final MethodHandle SEND_MESSAGE = statik(SENDER, "sendMessage", boolean.class, PEER, String.class);
+    private static final MethodHandle SENDER_SHUTDOWN = statik(SENDER, "shutdown", void.class);
+
+    private static final MethodHandle NEW_HISTORY = constructor(HISTORY, int.class);
+    private static final MethodHandle SAVE_MESSAGE = virtual(HISTORY, "saveMessage", void.class, String.class, String.class, String.class);
+    private static final MethodHandle SEARCH_MESSAGES = virtual(HISTORY, "searchMessages", List.class, String.class);
+    private static final MethodHandle CLOSE_HISTORY = virtual(HISTORY, "close", void.class);
+
+    private static final MethodHandle NEW_DISPATCHER = constructor(DISPATCHER, HISTORY);
+    private static final MethodHandle REGISTER = virtual(DISPATCHER, "register", void.class, byte.class, HANDLER);
+    private static final MethodHandle NEW_RECEIVER = constructor(RECEIVER, int.class, DISPATCHER, load("Receiver$Mode"));
+    private static final MethodHandle STOP_RECEIVER = virtual(RECEIVER, "stop", void.class);
+    private static final MethodHandle FRAME_TEXT = virtual(FRAME, "getText", String.class);
+
+    private App() {
+    }
+
+    static Object newPeer(String ip, int port) throws Throwable {
+        return NEW_PEER.invoke(ip, port);
+    }
+
+    static String peerId(Object peer) throws Throwable {
+        return (String) PEER_ID.invoke(peer);
+    }
+
+    static Object newPeers() throws Throwable {
+        return NEW_PEERS.invoke();
+    }
+
+    static boolean addPeer(Object peers, Object peer) throws Throwable {
+        return (boolean) ADD_PEER.invoke(peers, peer);
+    }
+
+    static Object getPeer(Object peers, String id) throws Throwable {
+        return GET_PEER.invoke(peers, id);
+    }
+
+    static Object getPeerByAddress(Object peers, String ip, int port) throws Throwable {
+        return GET_PEER_BY_ADDRESS.invoke(peers, ip, port);
+    }
+
+    static boolean sendMessage(Object peer, String text) throws Throwable {
+        return (boolean) SEND_MESSAGE.invoke(peer, text);
+    }
+
+    static void shutdownSender() throws Throwable {
+        SENDER_SHUTDOWN.invoke();
+    }
+
+    static Object newHistory(int port) throws Throwable {
+        return NEW_HISTORY.invoke(port);
+    }
+
+    static void saveMessage(Object history, String sender, String text, String type) throws Throwable {
+        SAVE_MESSAGE.invoke(history, sender, text, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> searchMessages(Object history, String query) throws Throwable {
+        return (List<String>) SEARCH_MESSAGES.invoke(history, query);
+    }
+
+    static void closeHistory(Object history) throws Throwable {
+        CLOSE_HISTORY.invoke(history);
+    }
+
+    /**
+     * Start a receiver whose MESSAGE frames go to onText instead of the console
+     * @param mode Receiver.Mode name (THREADS, NIO, VIRTUAL)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object startReceiver(int port, Object history, String mode, Consumer<String> onText) throws Throwable {
+        Object dispatcher = NEW_DISPATCHER.invoke(history);
+        Object handler = Proxy.newProxyInstance(HANDLER.getClassLoader(), new Class<?>[] {HANDLER}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(dispatcher, args);
+            }
+            onText.accept((String) FRAME_TEXT.invoke(args[0]));
+            return null;
+        });
+        byte messageType = FRAME.getField("MESSAGE").getByte(null);
+        REGISTER.invoke(dispatcher, messageType, handler);
+
+        Object modeValue = Enum.valueOf((Class) load("Receiver$Mode"), mode);
+        Object receiver = NEW_RECEIVER.invoke(port, dispatcher, modeValue);
+        Thread thread = new Thread((Runnable) receiver, "bench-receiver");
+        thread.setDaemon(true);
+        thread.start();
+        return receiver;
+    }
+
+    static void stopReceiver(Object receiver) throws Throwable {
+        STOP_RECEIVER.invoke(receiver);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... params) {
+        try {
+            return LOOKUP.findConstructor(type, MethodType.methodType(void.class, params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> type, String name, Class<?> result, Class<?>... params) {
+        try {
+            return LOOKUP.findVirtual(type, name, MethodType.methodType(result, params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle statik(Class<?> type, String name, Class<?> result, Class<?>... params) {
+        try {
+            return LOOKUP.findStatic(type, name, MethodType.methodType(result, params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MessageHistory.saveMessage and searchMessages with different amounts of
+ * history already stored.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HistoryBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int historySize;
+
+    private int port;
+    private Object history;
+    private String text;
+    private String rareQuery;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void fill() throws Throwable {
+        port = Workspace.freePort();
+        history = App.newHistory(port);
+        for (int i = 0; i < historySize; i++) {
+            App.saveMessage(history, "alice", "msg" + i + " " + Workspace.text(60, i), "received");
+        }
+        text = Workspace.text(80, 7);
+        rareQuery = "msg" + (historySize / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Throwable {
+        App.closeHistory(history);
+        Workspace.delete(port);
+    }
+
+    @Benchmark
+    public void saveMessage() throws Throwable {
+        App.saveMessage(history, "bob", text, (next++ & 1) == 0 ? "sent" : "received");
+    }
+
+    /**
+     * One matching message
+     */
+    @Benchmark
+    public List<String> searchRare() throws Throwable {
+        return App.searchMessages(history, rareQuery);
+    }
+
+    /**
+     * Two common words, AND-ed
+     */
+    @Benchmark
+    public List<String> searchCommon() throws Throwable {
+        return App.searchMessages(history, "coffee release");
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Peers lookups with 10 to 100k registered peers
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PeersBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"10", "1000", "100000"})
+    public int peerCount;
+
+    private Object peers;
+    private final String[] ids = new String[KEYS];
+    private final String[] ips = new String[KEYS];
+    private final int[] ports = new int[KEYS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void fill() throws Throwable {
+        peers = App.newPeers();
+        for (int i = 0; i < peerCount; i++) {
+            App.addPeer(peers, App.newPeer(ip(i), 5000 + i % 1000));
+        }
+        // Lookup keys: random registered peers
+        for (int k = 0; k < KEYS; k++) {
+            int i = ThreadLocalRandom.current().nextInt(peerCount);
+            ips[k] = ip(i);
+            ports[k] = 5000 + i % 1000;
+            ids[k] = ips[k] + ":" + ports[k];
+        }
+    }
+
+    private static String ip(int i) {
+        return "10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+    }
+
+    @Benchmark
+    public Object getPeer() throws Throwable {
+        return App.getPeer(peers, ids[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public Object getPeerByAddress() throws Throwable {
+        int k = next++ & (KEYS - 1);
+        return App.getPeerByAddress(peers, ips[k], ports[k]);
+    }
+}
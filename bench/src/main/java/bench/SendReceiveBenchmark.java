@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sender.sendMessage -> Receiver over loopback, with both receiver engines.
+ *
+ * send measures throughput of the sending side (the receiver keeps up in the
+ * background and is drained after every iteration); roundTrip measures the
+ * latency from sendMessage until the receiver has dispatched the message.
+ */
+@State(Scope.Benchmark)
+// Loopback is one address, so lift the receiver's per-address rate limit
+@Fork(value = 1, jvmArgsAppend = {"-Dp2p.receiver.rate=1e9", "-Dp2p.receiver.burst=1e9"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SendReceiveBenchmark {
+    @Param({"THREADS", "NIO"})
+    public String mode;
+
+    @Param({"64", "2048"})
+    public int messageSize;
+
+    private final AtomicLong received = new AtomicLong();
+    private long sent;
+    private int port;
+    private Object history;
+    private Object receiver;
+    private Object peer;
+    private String text;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        port = Workspace.freePort();
+        history = App.newHistory(port);
+        receiver = App.startReceiver(port, history, mode, t -> received.incrementAndGet());
+        peer = App.newPeer("127.0.0.1", port);
+        text = Workspace.text(messageSize, 42);
+
+        // Wait until the receiver is listening
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!App.sendMessage(peer, text)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Receiver did not start on port " + port);
+            }
+            Thread.sleep(50);
+        }
+        sent = 1;
+        awaitReceived();
+    }
+
+    @TearDown(Level.Iteration)
+    public void awaitReceived() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received.get() < sent && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Throwable {
+        App.stopReceiver(receiver);
+        App.closeHistory(history);
+        App.shutdownSender();
+        Workspace.delete(port);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean send() throws Throwable {
+        sent++;
+        return App.sendMessage(peer, text);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long roundTrip() throws Throwable {
+        long target = ++sent;
+        App.sendMessage(peer, text);
+        long seen;
+        while ((seen = received.get()) < target) {
+            Thread.onSpinWait();
+        }
+        return seen;
+    }
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Ports and history files for one benchmark trial.
+ * A node writes chat_history_<port>.txt, chat_meta_<port>.properties and the
+ * per-port directories below into the working directory; delete() removes them again.
+ */
+final class Workspace {
+    private static final String[] WORDS = {
+        "hello", "thanks", "meeting", "tomorrow", "build", "deploy", "review", "peer",
+        "network", "message", "alice", "bob", "carol", "lunch", "coffee", "release",
+        "bug", "fix", "test", "server", "client", "socket", "history", "search"
+    };
+
+    private static final String[] DIRECTORIES = {
+        "chat_log_", "chat_archive_", "chat_sync_", "chat_files_", "chat_outbox_", "chat_delivery_"
+    };
+
+    private Workspace() {
+    }
+
+    /**
+     * A port nothing listens on (the OS picks one for a throwaway socket)
+     * and no earlier trial left history files for
+     */
+    static int freePort() {
+        while (true) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!Files.exists(Paths.get("chat_history_" + port + ".txt"))) {
+                return port;
+            }
+        }
+    }
+
+    /**
+     * Chat-like text of roughly the given length, built from common words
+     */
+    static String text(int length, long seed) {
+        StringBuilder sb = new StringBuilder(length + 16);
+        long x = seed * 0x9E3779B97F4A7C15L + 1;
+        while (sb.length() < length) {
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            sb.append(WORDS[(int) ((x >>> 1) % WORDS.length)]).append(' ');
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    static void delete(int port) throws IOException {
+        Files.deleteIfExists(Paths.get("chat_history_" + port + ".txt"));
+        Files.deleteIfExists(Paths.get("chat_meta_" + port + ".properties"));
+        for (String prefix : DIRECTORIES) {
+            Path dir = Paths.get(prefix + port);
+            if (Files.exists(dir)) {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+    /**
+     * Stands in for a connection handler: runs until released, remembers if it was closed
+     */
+    private static class Handler implements Runnable, Closeable {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile Thread ranOn;
+        volatile boolean closed;
+
+        @Override
+        public void run() {
+            ranOn = Thread.currentThread();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static AdmissionControl control(int workers, int queue, AdmissionControl.RejectionPolicy policy) {
+        return new AdmissionControl(new AdmissionControl.Limits(16, 4, workers, queue, policy, 1000, 1000));
+    }
+
+    @Test
+    void rejectedConnectionIsClosedWithoutBlockingTheAcceptingThread() throws Exception {
+        ThreadPoolExecutor pool = control(1, 0, AdmissionControl.RejectionPolicy.REJECT).newWorkerPool();
+        Handler busy = new Handler();
+        pool.execute(busy);
+        assertTrue(busy.started.await(5, TimeUnit.SECONDS));
+
+        Handler rejected = new Handler();
+        long start = System.nanoTime();
+        pool.execute(rejected);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "execute blocked the caller");
+        assertTrue(rejected.closed);
+        assertNull(rejected.ranOn);
+
+        busy.release.countDown();
+        pool.shutdownNow();
+    }
+
+    @Test
+    void dropOldestClosesTheLongestWaitingConnection() throws Exception {
+        ThreadPoolExecutor pool = control(1, 1, AdmissionControl.RejectionPolicy.DROP_OLDEST).newWorkerPool();
+        Handler busy = new Handler();
+        pool.execute(busy);
+        assertTrue(busy.started.await(5, TimeUnit.SECONDS));
+        Handler waiting = new Handler();
+        pool.execute(waiting);
+        Handler newest = new Handler();
+        pool.execute(newest);
+
+        assertTrue(waiting.closed);
+        assertFalse(newest.closed);
+        busy.release.countDown();
+        assertTrue(newest.started.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), newest.ranOn);
+        newest.release.countDown();
+        pool.shutdownNow();
+    }
+
+    @Test
+    void admitLimitsConnectionsPerAddressExceptLoopback() throws Exception {
+        AdmissionControl control = control(16, 0, AdmissionControl.RejectionPolicy.REJECT);
+        InetAddress remote = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < 4; i++) {
+            assertTrue(control.admit(remote));
+        }
+        assertFalse(control.admit(remote));
+        control.release(remote);
+        assertTrue(control.admit(remote));
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < 12; i++) {
+            assertTrue(control.admit(loopback));
+        }
+        assertFalse(control.admit(loopback), "over maxConnections");
+    }
+}
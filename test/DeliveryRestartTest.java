@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryRestartTest {
+    private static final int PORT = 47025;
+    private static final String STATE_DIR = "chat_delivery_" + PORT;
+    // Sender whose acks go nowhere: nothing listens on its port
+    private static final String SENDER = "bob@1";
+    private static final InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.1", 40000);
+
+    /**
+     * Records what reaches the history instead of storing it
+     */
+    private static class RecordingHistory extends MessageHistory {
+        final List<String> added = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingHistory() {
+            super(PORT);
+        }
+
+        @Override
+        public void add(String message) {
+            added.add(message);
+        }
+    }
+
+    private RecordingHistory history;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        delete();
+        history = new RecordingHistory();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        history.close();
+        delete();
+    }
+
+    /**
+     * A receiver with a long ack delay, so a restart happens before any ack went out
+     */
+    private static Delivery receiver(MessageHistory history) {
+        return new Delivery(STATE_DIR, history, 60_000, 1000, 4096);
+    }
+
+    private static Frame message(long session, long seq, long base, long messageId) {
+        return new Frame(Frame.SEQ_MESSAGE, (byte) 0, messageId, System.currentTimeMillis(), SENDER,
+                         Delivery.payload(session, seq, base, "text " + messageId));
+    }
+
+    @Test
+    void resendAfterReceiverRestartIsNotShownAgain() {
+        Delivery first = receiver(history);
+        for (long seq = 1; seq <= 5; seq++) {
+            first.onFrame(message(7, seq, 1, 100 + seq), REMOTE);
+        }
+        first.close();
+        assertEquals(5, history.added.size());
+
+        // Restarted: the sender never got an ack, so it resends everything, then a new message
+        Delivery second = receiver(history);
+        for (long seq = 1; seq <= 6; seq++) {
+            second.onFrame(message(7, seq, 1, 100 + seq), REMOTE);
+        }
+        second.close();
+        assertEquals(6, history.added.size());
+        assertEquals(6, new HashSet<>(history.added).size(), "a message was shown twice: " + history.added);
+    }
+
+    @Test
+    void resendInNewSenderSessionAfterBothRestartedIsNotShownAgain() {
+        Delivery first = receiver(history);
+        for (long seq = 1; seq <= 3; seq++) {
+            first.onFrame(message(7, seq, 1, 200 + seq), REMOTE);
+        }
+        first.close();
+
+        // The sender restarted too: same messages, new session and sequence numbers
+        Delivery second = receiver(history);
+        for (long seq = 1; seq <= 4; seq++) {
+            second.onFrame(message(8, seq, 1, 200 + seq), REMOTE);
+        }
+        second.close();
+        assertEquals(Arrays.asList("text 201", "text 202", "text 203", "text 204"),
+                     history.added.stream().map(m -> m.substring(m.lastIndexOf(": ") + 2)).toList());
+    }
+
+    private static void delete() throws IOException {
+        Files.deleteIfExists(Paths.get("chat_history_" + PORT + ".txt"));
+        Files.deleteIfExists(Paths.get("chat_meta_" + PORT + ".properties"));
+        for (String prefix : new String[] { "chat_delivery_", "chat_log_", "chat_archive_" }) {
+            Path dir = Paths.get(prefix + PORT);
+            if (Files.exists(dir)) {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageHistoryRetentionTest {
+    private static final int PORT = 47019;
+    private static final String[] PROPERTIES = {
+        "p2p.history.rotateBytes", "p2p.history.archiveMaxBytes", "p2p.history.logSegmentBytes"
+    };
+
+    @BeforeEach
+    void smallLimits() throws IOException {
+        delete();
+        System.setProperty("p2p.history.rotateBytes", String.valueOf(64 * 1024));
+        System.setProperty("p2p.history.archiveMaxBytes", String.valueOf(64 * 1024));
+        System.setProperty("p2p.history.logSegmentBytes", String.valueOf(64 * 1024));
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        delete();
+    }
+
+    @Test
+    void messageLogShrinksWhenArchivesAreDropped() throws Exception {
+        MessageHistory history = new MessageHistory(PORT);
+        try {
+            int count = 40_000;
+            for (int i = 0; i < count; i++) {
+                history.saveMessage("alice", "message " + i + " word" + Integer.toHexString(i * 0x9E3779B1), "sent");
+            }
+            history.saveMessage("alice", "lastmessage", "sent");
+
+            // Rotation, compression and retention run in the background
+            Path logDir = Paths.get("chat_log_" + PORT);
+            long deadline = System.currentTimeMillis() + 20_000;
+            long stored;
+            while ((stored = history.getStoredMessageCount()) > count / 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(stored < count / 2, "log kept " + stored + " of " + (count + 1) + " messages");
+            assertTrue(size(logDir) < 2 * 1024 * 1024, "log directory is " + size(logDir) + " bytes");
+            assertTrue(history.searchMessages("word" + Integer.toHexString(0)).isEmpty(),
+                       "deleted message still found");
+            assertEquals(1, history.searchMessages("lastmessage").size());
+            assertTrue(history.getLastMessages(1).get(0).contains("lastmessage"));
+        } finally {
+            history.close();
+        }
+    }
+
+    private static long size(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    private static void delete() throws IOException {
+        Files.deleteIfExists(Paths.get("chat_history_" + PORT + ".txt"));
+        Files.deleteIfExists(Paths.get("chat_meta_" + PORT + ".properties"));
+        for (String prefix : new String[] { "chat_log_", "chat_archive_" }) {
+            Path dir = Paths.get(prefix + PORT);
+            if (Files.exists(dir)) {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+}